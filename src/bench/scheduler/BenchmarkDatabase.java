@@ -0,0 +1,146 @@
+package scheduler;
+
+import scheduler.db.ConnectionManager;
+import scheduler.service.AvailabilityIndex;
+import scheduler.service.CaregiverAssignment;
+import scheduler.service.ScheduleCache;
+import scheduler.util.Util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+/**
+ * Sets up an embedded database with a synthetic dataset for benchmarks and load tests.
+ *
+ * Every account uses the password {@link #PASSWORD}. Caregivers are named c0, c1, ..., patients p0, p1, ...
+ * and availability starts on {@link #FIRST_DAY}.
+ */
+public class BenchmarkDatabase {
+
+    public static final String PASSWORD = "Passw0rd!";
+    public static final String VACCINE = "Pfizer";
+    public static final LocalDate FIRST_DAY = LocalDate.of(2030, 1, 1);
+
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * Points ConnectionManager at a fresh in-memory database. Must run before anything touches the database.
+     */
+    public static void useEmbedded(String name) {
+        System.setProperty("DBProfile", "embedded");
+        System.setProperty("DBUrl", "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        System.setProperty("PoolMaxSize", "64");
+        try {
+            System.setProperty("InventoryLogDir", Files.createTempDirectory("scheduler-bench").toString());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Inserts the given number of caregivers and patients, availability for every caregiver on each of the
+     * first availabilityDays days, a vaccine with plenty of doses, and reservations spread over patients,
+     * caregivers and days after the availability window.
+     */
+    public static void populate(int caregivers, int patients, int availabilityDays, int reservations)
+            throws SQLException {
+        byte[] salt = Util.generateSalt();
+        byte[] hash = Util.generateHash(PASSWORD, salt);
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement caregiver = con.prepareStatement("INSERT INTO Caregivers VALUES (?, ?, ?)");
+            for (int i = 0; i < caregivers; i++) {
+                caregiver.setString(1, "c" + i);
+                caregiver.setBytes(2, salt);
+                caregiver.setBytes(3, hash);
+                add(caregiver, i);
+            }
+            caregiver.executeBatch();
+
+            PreparedStatement patient = con.prepareStatement("INSERT INTO Patients VALUES (?, ?, ?)");
+            for (int i = 0; i < patients; i++) {
+                patient.setString(1, "p" + i);
+                patient.setBytes(2, salt);
+                patient.setBytes(3, hash);
+                add(patient, i);
+            }
+            patient.executeBatch();
+
+            PreparedStatement vaccine = con.prepareStatement("INSERT INTO Vaccines VALUES (?, ?)");
+            vaccine.setString(1, VACCINE);
+            vaccine.setInt(2, Integer.MAX_VALUE / 2);
+            vaccine.executeUpdate();
+            con.commit();
+
+            addAvailability(con, caregivers, availabilityDays);
+
+            PreparedStatement reservation = con.prepareStatement("INSERT INTO Reservations VALUES (?, ?, ?, ?, ?)");
+            for (int i = 0; i < reservations; i++) {
+                reservation.setInt(1, i + 1);
+                reservation.setString(2, "p" + (i % Math.max(1, patients)));
+                reservation.setString(3, "c" + (i % Math.max(1, caregivers)));
+                reservation.setString(4, VACCINE);
+                reservation.setDate(5, Date.valueOf(FIRST_DAY.plusDays(availabilityDays + i / Math.max(1, caregivers))));
+                add(reservation, i);
+            }
+            reservation.executeBatch();
+            con.commit();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    /**
+     * Gives every caregiver availability on each of the first days, skipping slots that still exist. The
+     * in-memory views of Availabilities are dropped afterwards, as after a bulk_import.
+     */
+    public static void refillAvailability(int caregivers, int days) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            con.setAutoCommit(false);
+            addAvailability(con, caregivers, days);
+        } finally {
+            cm.closeConnection();
+            ScheduleCache.getInstance().invalidateAll();
+            CaregiverAssignment.getInstance().invalidateAll();
+            AvailabilityIndex.getInstance().invalidateAll();
+        }
+    }
+
+    public static Date day(int offset) {
+        return Date.valueOf(FIRST_DAY.plusDays(offset));
+    }
+
+    private static void addAvailability(Connection con, int caregivers, int days) throws SQLException {
+        PreparedStatement availability = con.prepareStatement("INSERT INTO Availabilities SELECT ?, ? " +
+                "WHERE NOT EXISTS (SELECT 1 FROM Availabilities WHERE Time = ? AND Username = ?)");
+        int rows = 0;
+        for (int d = 0; d < days; d++) {
+            Date date = day(d);
+            for (int i = 0; i < caregivers; i++) {
+                availability.setDate(1, date);
+                availability.setString(2, "c" + i);
+                availability.setDate(3, date);
+                availability.setString(4, "c" + i);
+                add(availability, rows++);
+            }
+        }
+        availability.executeBatch();
+        con.commit();
+    }
+
+    private static void add(PreparedStatement statement, int row) throws SQLException {
+        statement.addBatch();
+        if (row % BATCH_SIZE == BATCH_SIZE - 1) {
+            statement.executeBatch();
+        }
+    }
+}
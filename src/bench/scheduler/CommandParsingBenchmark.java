@@ -0,0 +1,51 @@
+package scheduler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import scheduler.util.Util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks for the work the command loop does before touching the database.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommandParsingBenchmark {
+
+    @Param({"reserve 2030-01-15 Pfizer", "search_caregiver_schedule 2030-01-01 2030-01-31",
+            "upload_availability 2030-01-01 2030-03-31 1111100"})
+    public String line;
+
+    @Param({"Passw0rd!", "short1!", "NoSpecialCharacters123"})
+    public String password;
+
+    @Benchmark
+    public String[] tokenize() {
+        return Scheduler.tokenize(line);
+    }
+
+    // the split the command loop used before the tokenizer, kept as a baseline
+    @Benchmark
+    public String[] split() {
+        return line.split(" ");
+    }
+
+    @Benchmark
+    public boolean checkStrongPassword() {
+        return Util.checkStrongPassword(password);
+    }
+}
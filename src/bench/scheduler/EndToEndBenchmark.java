@@ -0,0 +1,126 @@
+package scheduler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JMH benchmarks that run whole commands through Scheduler.execute against an embedded database.
+ *
+ * Every fork gets its own in-memory database populated according to the parameters. Reservations are
+ * stored on the days after the availability window so that they do not use up bookable slots, and the
+ * availability consumed by reserve is refilled before each iteration.
+ *
+ * reserve uses up a slot per call, so it runs in single-shot batches of RESERVE_BATCH calls spread evenly over
+ * the availability window, which every parameter combination has room for; its score is the time of a whole
+ * batch. A reserve that does not book fails the benchmark rather than measuring the waitlist path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+
+    private static final PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+
+    // at most 7 bookings per day over 30 days, fewer than the 10 caregivers available each day
+    private static final int RESERVE_BATCH = 200;
+
+    @Param({"10", "100"})
+    public int caregivers;
+
+    @Param({"30", "365"})
+    public int availabilityDays;
+
+    @Param({"1000", "100000"})
+    public int reservations;
+
+    private final AtomicInteger newPatients = new AtomicInteger();
+    private final AtomicInteger reserves = new AtomicInteger();
+    private Scheduler patient;
+    private Scheduler caregiver;
+
+    @Setup(Level.Trial)
+    public void createDatabase() throws SQLException {
+        BenchmarkDatabase.useEmbedded("bench");
+        BenchmarkDatabase.populate(caregivers, 100, availabilityDays, reservations);
+        Scheduler.preload();
+
+        patient = new Scheduler(discard);
+        patient.execute("login_patient p0 " + BenchmarkDatabase.PASSWORD);
+        caregiver = new Scheduler(discard);
+        caregiver.execute("login_caregiver c0 " + BenchmarkDatabase.PASSWORD);
+    }
+
+    @Setup(Level.Iteration)
+    public void refillAvailability() throws SQLException {
+        BenchmarkDatabase.refillAvailability(caregivers, availabilityDays);
+        reserves.set(0);
+    }
+
+    @Benchmark
+    public boolean createPatient() {
+        Scheduler session = new Scheduler(discard);
+        session.execute("create_patient new" + newPatients.incrementAndGet() + " " + BenchmarkDatabase.PASSWORD);
+        return session.lastCommandFailed();
+    }
+
+    @Benchmark
+    public boolean loginPatient() {
+        Scheduler session = new Scheduler(discard);
+        session.execute("login_patient p1 " + BenchmarkDatabase.PASSWORD);
+        return session.lastCommandFailed();
+    }
+
+    @Benchmark
+    public boolean searchCaregiverSchedule() {
+        patient.execute("search_caregiver_schedule " + randomDay());
+        return patient.lastCommandFailed();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 5, batchSize = RESERVE_BATCH)
+    @Measurement(iterations = 10, batchSize = RESERVE_BATCH)
+    public void reserve() {
+        String day = BenchmarkDatabase.day(reserves.getAndIncrement() % availabilityDays).toString();
+        patient.execute("reserve " + day + " " + BenchmarkDatabase.VACCINE);
+        if (patient.lastCommandFailed()) {
+            throw new IllegalStateException("reserve on " + day + " did not book");
+        }
+    }
+
+    @Benchmark
+    public boolean showAppointmentsPatient() {
+        patient.execute("show_appointments");
+        return patient.lastCommandFailed();
+    }
+
+    @Benchmark
+    public boolean showAppointmentsCaregiver() {
+        caregiver.execute("show_appointments");
+        return caregiver.lastCommandFailed();
+    }
+
+    private String randomDay() {
+        return BenchmarkDatabase.day(ThreadLocalRandom.current().nextInt(availabilityDays)).toString();
+    }
+}
@@ -0,0 +1,156 @@
+package scheduler.db;
+
+import scheduler.BenchmarkDatabase;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Times the scheduler's lookup queries on a large embedded database before and after the keys and indexes
+ * migration, so the effect of each index can be read off one run.
+ *
+ * The database is migrated up to the version before the indexes, populated, measured, migrated to the
+ * latest version and measured again. Appointments are listed the way show_appointments pages them, and the
+ * Vaccines table gets extra vaccines, most of them out of stock, so the in-stock lookup has rows to skip.
+ *
+ * Usage: java scheduler.db.IndexBenchmark [caregivers] [patients] [availability-days] [reservations] [queries]
+ */
+public class IndexBenchmark {
+
+    private static final int INDEX_VERSION = 3;
+    private static final int EXTRA_VACCINES = 10_000;
+    // one in this many extra vaccines is in stock
+    private static final int IN_STOCK_EVERY = 20;
+    // show_appointments' default page size
+    private static final int PAGE_SIZE = 50;
+
+    public static void main(String[] args) throws SQLException {
+        int caregivers = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int patients = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+        int days = args.length > 2 ? Integer.parseInt(args[2]) : 180;
+        int reservations = args.length > 3 ? Integer.parseInt(args[3]) : 500_000;
+        int queries = args.length > 4 ? Integer.parseInt(args[4]) : 2_000;
+
+        BenchmarkDatabase.useEmbedded("indexes");
+        System.setProperty("Migrate", "false");
+        migrate(INDEX_VERSION - 1);
+        long start = System.nanoTime();
+        BenchmarkDatabase.populate(caregivers, patients, days, reservations);
+        addVaccines();
+        System.out.printf("populated %d caregivers, %d patients, %d availability rows, %d reservations in %.1f s%n",
+                caregivers, patients, (long) caregivers * days, reservations, (System.nanoTime() - start) / 1e9);
+
+        Map<String, Double> before = measure(caregivers, patients, days, reservations, queries);
+        start = System.nanoTime();
+        migrate(MigrationRunner.latestVersion());
+        System.out.printf("migration took %.1f s%n", (System.nanoTime() - start) / 1e9);
+        Map<String, Double> after = measure(caregivers, patients, days, reservations, queries);
+
+        System.out.printf("%-28s %12s %12s %8s%n", "query", "before us", "after us", "speedup");
+        for (String name : before.keySet()) {
+            System.out.printf("%-28s %12.1f %12.1f %7.1fx%n", name, before.get(name), after.get(name),
+                    before.get(name) / after.get(name));
+        }
+    }
+
+    private static void migrate(int version) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            new MigrationRunner(con, ConnectionManager.getDialect()).migrate(version);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // mean microseconds per query; the first pass over each query warms up the JIT and the database
+    private static Map<String, Double> measure(int caregivers, int patients, int days, int reservations,
+                                               int queries) throws SQLException {
+        Map<String, Double> results = new LinkedHashMap<>();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            // first page of show_appointments, fetched like the command does with one row extra
+            results.put("appointments by patient", time(con, queries, PAGE_SIZE + 1,
+                    "SELECT ID, Patient, Caregiver, Vaccine, Time FROM Reservations " +
+                            "WHERE Patient = ? AND ID > ? ORDER BY ID ASC",
+                    (st, r) -> {
+                        st.setString(1, "p" + r.nextInt(patients));
+                        st.setInt(2, 0);
+                    }));
+            results.put("appointments by caregiver", time(con, queries, PAGE_SIZE + 1,
+                    "SELECT ID, Patient, Caregiver, Vaccine, Time FROM Reservations " +
+                            "WHERE Caregiver = ? AND ID > ? ORDER BY ID ASC",
+                    (st, r) -> {
+                        st.setString(1, "c" + r.nextInt(caregivers));
+                        st.setInt(2, 0);
+                    }));
+            results.put("reservation by id", time(con, queries,
+                    "SELECT Patient FROM Reservations WHERE ID = ?",
+                    (st, r) -> st.setInt(1, 1 + r.nextInt(Math.max(1, reservations)))));
+            results.put("reservations on a day", time(con, queries,
+                    "SELECT Caregiver FROM Reservations WHERE Time = ?",
+                    (st, r) -> st.setDate(1, BenchmarkDatabase.day(days + r.nextInt(
+                            Math.max(1, reservations / Math.max(1, caregivers)))))));
+            results.put("availability by caregiver", time(con, queries,
+                    "SELECT Time FROM Availabilities WHERE Username = ? ORDER BY Time",
+                    (st, r) -> st.setString(1, "c" + r.nextInt(caregivers))));
+            results.put("vaccines in stock", time(con, queries,
+                    "SELECT Name, Doses FROM Vaccines WHERE Doses > 0", (st, r) -> { }));
+        } finally {
+            cm.closeConnection();
+        }
+        return results;
+    }
+
+    private static void addVaccines() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try (PreparedStatement statement = con.prepareStatement("INSERT INTO Vaccines VALUES (?, ?)")) {
+            con.setAutoCommit(false);
+            for (int i = 0; i < EXTRA_VACCINES; i++) {
+                statement.setString(1, "v" + i);
+                statement.setInt(2, i % IN_STOCK_EVERY == 0 ? 100 : 0);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            con.commit();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static double time(Connection con, int queries, String sql, Binder binder) throws SQLException {
+        return time(con, queries, 0, sql, binder);
+    }
+
+    private static double time(Connection con, int queries, int maxRows, String sql, Binder binder)
+            throws SQLException {
+        double micros = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            Random random = new Random(42);
+            long start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                try (PreparedStatement statement = con.prepareStatement(sql)) {
+                    binder.bind(statement, random);
+                    statement.setMaxRows(maxRows);
+                    ResultSet rs = statement.executeQuery();
+                    while (rs.next()) {
+                        rs.getObject(1);
+                    }
+                }
+            }
+            micros = (System.nanoTime() - start) / 1e3 / queries;
+        }
+        return micros;
+    }
+
+    private interface Binder {
+        void bind(PreparedStatement statement, Random random) throws SQLException;
+    }
+}
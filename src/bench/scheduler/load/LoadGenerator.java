@@ -0,0 +1,303 @@
+package scheduler.load;
+
+import scheduler.BenchmarkDatabase;
+import scheduler.Scheduler;
+import scheduler.db.ConnectionManager;
+import scheduler.metrics.LatencyHistogram;
+import scheduler.service.VaccineInventory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates many concurrent patients and caregivers issuing scheduler commands, or replays a recorded
+ * command log, and reports throughput, latency percentiles per command, booking conflicts and
+ * consistency violations found in the database afterwards.
+ *
+ * Every simulated user is its own Scheduler session on its own thread. Users issue commands as a Poisson
+ * process so that together they arrive at the configured rate, independent of how fast commands finish.
+ * Patients search and reserve within the populated days; caregivers upload the days after them, each upload
+ * a day the caregiver has not uploaded yet, since the populated days are already all uploaded.
+ *
+ * Usage: java scheduler.load.LoadGenerator [key=value ...]
+ *   patients=200 caregivers=20 rate=500 (commands/s) seconds=30 days=30
+ *   mix=search:60,reserve:25,show:15 caregiverMix=upload:50,doses:30,show:20
+ *   replay=<file>  replays "<session> <command ...>" lines, optionally prefixed by "@<millis>"
+ *   external=true  uses the database from the environment instead of a populated embedded one
+ */
+public class LoadGenerator {
+
+    private final Map<String, String> options;
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> failures = new ConcurrentHashMap<>();
+    private final AtomicLong booked = new AtomicLong();
+    private final AtomicLong noSlot = new AtomicLong();
+    private final AtomicLong waitlisted = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+
+    public LoadGenerator(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                System.out.println("Expected key=value but got " + arg);
+                return;
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new LoadGenerator(options).run();
+    }
+
+    public void run() throws Exception {
+        int patients = intOption("patients", 200);
+        int caregivers = intOption("caregivers", 20);
+        int days = intOption("days", 30);
+        if (!Boolean.parseBoolean(options.getOrDefault("external", "false"))) {
+            BenchmarkDatabase.useEmbedded("load");
+            BenchmarkDatabase.populate(caregivers, patients, days, 0);
+        }
+        Scheduler.preload();
+
+        long start = System.nanoTime();
+        if (options.containsKey("replay")) {
+            replay(options.get("replay"));
+        } else {
+            simulate(patients, caregivers, days);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        VaccineInventory.getInstance().flush();
+        report(seconds);
+    }
+
+    private void simulate(int patients, int caregivers, int days) throws InterruptedException {
+        double rate = doubleOption("rate", 500);
+        long deadline = System.nanoTime() + (long) (doubleOption("seconds", 30) * 1e9);
+        Map<String, Integer> patientMix = parseMix(options.getOrDefault("mix", "search:60,reserve:25,show:15"));
+        Map<String, Integer> caregiverMix = parseMix(
+                options.getOrDefault("caregiverMix", "upload:50,doses:30,show:20"));
+        int users = patients + caregivers;
+        // each user's mean time between commands so that all users together arrive at the target rate
+        double meanGapNanos = users / rate * 1e9;
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            boolean isPatient = i < patients;
+            String login = isPatient ? "login_patient p" + i : "login_caregiver c" + (i - patients);
+            Map<String, Integer> mix = isPatient ? patientMix : caregiverMix;
+            Thread t = new Thread(() -> {
+                Session session = new Session();
+                session.run(login + " " + BenchmarkDatabase.PASSWORD);
+                Random random = ThreadLocalRandom.current();
+                int uploaded = 0;
+                long next = System.nanoTime();
+                while (true) {
+                    next += (long) (-Math.log(1 - random.nextDouble()) * meanGapNanos);
+                    if (next > deadline) {
+                        break;
+                    }
+                    LockSupport.parkNanos(next - System.nanoTime());
+                    String command = pick(mix, random);
+                    String day = BenchmarkDatabase.day(random.nextInt(days)).toString();
+                    switch (command) {
+                        case "search":
+                            session.run("search_caregiver_schedule " + day);
+                            break;
+                        case "reserve":
+                            session.run("reserve " + day + " " + BenchmarkDatabase.VACCINE);
+                            break;
+                        case "upload":
+                            session.run("upload_availability " + BenchmarkDatabase.day(days + uploaded++));
+                            break;
+                        case "doses":
+                            session.run("add_doses " + BenchmarkDatabase.VACCINE + " " + (1 + random.nextInt(10)));
+                            break;
+                        default:
+                            session.run("show_appointments");
+                    }
+                }
+            }, "load-user-" + i);
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+
+    private void replay(String file) throws IOException, InterruptedException {
+        // group the log by session, keeping the order of commands within each session
+        Map<String, List<Long>> offsets = new LinkedHashMap<>();
+        Map<String, List<String>> commands = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = Scheduler.tokenize(line);
+                if (tokens.length == 0 || tokens[0].startsWith("#")) {
+                    continue;
+                }
+                int first = 0;
+                long at = -1;
+                if (tokens[0].startsWith("@")) {
+                    at = Long.parseLong(tokens[0].substring(1));
+                    first = 1;
+                }
+                if (tokens.length < first + 2) {
+                    continue;
+                }
+                String session = tokens[first];
+                String command = String.join(" ", Arrays.copyOfRange(tokens, first + 1, tokens.length));
+                offsets.computeIfAbsent(session, k -> new ArrayList<>()).add(at);
+                commands.computeIfAbsent(session, k -> new ArrayList<>()).add(command);
+            }
+        }
+
+        long start = System.nanoTime();
+        double speed = doubleOption("speed", 1);
+        List<Thread> threads = new ArrayList<>();
+        for (String name : commands.keySet()) {
+            List<String> script = commands.get(name);
+            List<Long> times = offsets.get(name);
+            Thread t = new Thread(() -> {
+                Session session = new Session();
+                for (int i = 0; i < script.size(); i++) {
+                    long at = times.get(i);
+                    if (at >= 0) {
+                        LockSupport.parkNanos(start + (long) (at * 1e6 / speed) - System.nanoTime());
+                    }
+                    session.run(script.get(i));
+                }
+            }, "replay-" + name);
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+
+    private void report(double seconds) throws SQLException {
+        long total = 0;
+        for (LatencyHistogram histogram : latencies.values()) {
+            total += histogram.getCount();
+        }
+        System.out.printf("%d commands in %.1f s: %.0f commands/s%n", total, seconds, total / seconds);
+        System.out.printf("%-28s %8s %8s %10s %10s %10s %10s%n",
+                "command", "count", "failed", "p50 ms", "p95 ms", "p99 ms", "max ms");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            System.out.printf("%-28s %8d %8d %10.2f %10.2f %10.2f %10.2f%n", entry.getKey(), h.getCount(),
+                    failures.getOrDefault(entry.getKey(), new AtomicLong()).get(),
+                    h.getPercentile(0.50) / 1e6, h.getPercentile(0.95) / 1e6,
+                    h.getPercentile(0.99) / 1e6, h.getMax() / 1e6);
+        }
+        System.out.printf("reservations: %d booked, %d waitlisted, %d without a free slot or dose, " +
+                "%d conflicts/errors%n", booked.get(), waitlisted.get(), noSlot.get(), conflicts.get());
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            ResultSet doubleBooked = con.prepareStatement("SELECT COUNT(*) FROM (SELECT Caregiver, Time " +
+                    "FROM Reservations GROUP BY Caregiver, Time HAVING COUNT(*) > 1) d").executeQuery();
+            doubleBooked.next();
+            ResultSet negative = con.prepareStatement("SELECT COUNT(*) FROM Vaccines WHERE Doses < 0").executeQuery();
+            negative.next();
+            System.out.printf("violations: %d double-booked caregiver days, %d vaccines with negative doses%n",
+                    doubleBooked.getLong(1), negative.getLong(1));
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static Map<String, Integer> parseMix(String mix) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String part : mix.split(",")) {
+            String[] kv = part.split(":");
+            weights.put(kv[0].trim(), Integer.parseInt(kv[1].trim()));
+        }
+        return weights;
+    }
+
+    private static String pick(Map<String, Integer> mix, Random random) {
+        int total = 0;
+        for (int weight : mix.values()) {
+            total += weight;
+        }
+        int r = random.nextInt(total);
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            r -= entry.getValue();
+            if (r < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private double doubleOption(String name, double defaultValue) {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+    }
+
+    /**
+     * One simulated user: a Scheduler session whose output is captured to classify the results.
+     */
+    private class Session {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final Scheduler scheduler = new Scheduler(new PrintStream(buffer, false, StandardCharsets.UTF_8));
+
+        void run(String line) {
+            String[] tokens = Scheduler.tokenize(line);
+            if (tokens.length == 0) {
+                return;
+            }
+            buffer.reset();
+            long start = System.nanoTime();
+            scheduler.execute(tokens);
+            long elapsed = System.nanoTime() - start;
+            latencies.computeIfAbsent(tokens[0], k -> new LatencyHistogram()).record(elapsed);
+            if (scheduler.lastCommandFailed()) {
+                failures.computeIfAbsent(tokens[0], k -> new AtomicLong()).incrementAndGet();
+            }
+            if (tokens[0].equals("reserve")) {
+                String output = buffer.toString(StandardCharsets.UTF_8);
+                if (output.startsWith("Appointment ID")) {
+                    booked.incrementAndGet();
+                } else if (output.contains("on the waitlist")) {
+                    // may still be booked later by the waitlist, so not counted as without a slot
+                    waitlisted.incrementAndGet();
+                } else if (output.startsWith("No Caregiver") || output.startsWith("Not enough")) {
+                    noSlot.incrementAndGet();
+                } else {
+                    conflicts.incrementAndGet();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package scheduler.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Measures password hashes per second on one thread and on the HashingService pool.
+ *
+ * Usage: java scheduler.util.HashingBenchmark [hashes-per-round] [rounds]
+ */
+public class HashingBenchmark {
+
+    public static void main(String[] args) throws ExecutionException, InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        List<String> passwords = new ArrayList<>(count);
+        List<byte[]> salts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            passwords.add("Passw0rd!" + i);
+            salts.add(Util.generateSalt());
+        }
+        HashingService service = HashingService.getInstance();
+
+        // the first round of each mode warms up the JIT and is not reported
+        for (int round = 0; round <= rounds; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                Util.generateHash(passwords.get(i), salts.get(i));
+            }
+            double single = count / ((System.nanoTime() - start) / 1e9);
+
+            start = System.nanoTime();
+            service.hashAll(passwords, salts).get();
+            double parallel = count / ((System.nanoTime() - start) / 1e9);
+
+            if (round > 0) {
+                System.out.printf("round %d: 1 thread %.0f hashes/s, %d threads %.0f hashes/s (%.1fx)%n",
+                        round, single, service.getThreads(), parallel, parallel / single);
+            }
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Util.generateSalt();
+        }
+        System.out.printf("salts: %.0f/s%n", count / ((System.nanoTime() - start) / 1e9));
+    }
+}
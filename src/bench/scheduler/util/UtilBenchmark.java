@@ -0,0 +1,44 @@
+package scheduler.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks for password salting and hashing in Util.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UtilBenchmark {
+
+    private final byte[] salt = Util.generateSalt();
+
+    @Benchmark
+    public byte[] generateSalt() {
+        return Util.generateSalt();
+    }
+
+    @Benchmark
+    public byte[] generateHash() {
+        return Util.generateHash("Passw0rd!", salt);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] generateHashAllCores() {
+        return Util.generateHash("Passw0rd!", salt);
+    }
+}
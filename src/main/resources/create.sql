@@ -1,3 +1,6 @@
+-- The schema of migrations V1 and V2, for creating a database by hand. The scheduler recognizes it and applies
+-- the later scripts in db/migration on startup, so keep this file in step with V1 and V2 only.
+
 CREATE TABLE Caregivers (
     Username varchar(255),
     Salt BINARY(16),
@@ -33,4 +36,10 @@ CREATE TABLE Reservations (
     FOREIGN KEY(Patient) REFERENCES Patients(Username),
     FOREIGN KEY(Caregiver) REFERENCES Caregivers(Username),
     FOREIGN KEY(Vaccine) REFERENCES Vaccines(Name)
+);
+
+CREATE TABLE IdBlocks (
+    Name varchar(255),
+    NextValue int,
+    PRIMARY KEY (Name)
 );
\ No newline at end of file
@@ -0,0 +1,5 @@
+CREATE TABLE IdBlocks (
+    Name varchar(255),
+    NextValue int,
+    PRIMARY KEY (Name)
+);
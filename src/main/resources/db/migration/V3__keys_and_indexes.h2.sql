@@ -0,0 +1,10 @@
+-- H2 has neither included columns nor filtered indexes, so the key columns carry the rest.
+ALTER TABLE Reservations ALTER COLUMN ID SET NOT NULL;
+ALTER TABLE Reservations ADD CONSTRAINT PK_Reservations PRIMARY KEY (ID);
+CREATE INDEX IX_Reservations_Patient ON Reservations (Patient, ID);
+CREATE INDEX IX_Reservations_Caregiver ON Reservations (Caregiver, ID);
+CREATE INDEX IX_Reservations_Time ON Reservations (Time, Caregiver);
+
+CREATE INDEX IX_Availabilities_Username ON Availabilities (Username, Time);
+
+CREATE INDEX IX_Vaccines_Doses ON Vaccines (Doses, Name);
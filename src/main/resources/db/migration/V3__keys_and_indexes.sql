@@ -0,0 +1,12 @@
+-- Reservations are looked up by ID, listed per patient or caregiver in ID order, and counted per day.
+ALTER TABLE Reservations ALTER COLUMN ID INTEGER NOT NULL;
+ALTER TABLE Reservations ADD CONSTRAINT PK_Reservations PRIMARY KEY (ID);
+CREATE INDEX IX_Reservations_Patient ON Reservations (Patient, ID) INCLUDE (Caregiver, Vaccine, Time);
+CREATE INDEX IX_Reservations_Caregiver ON Reservations (Caregiver, ID) INCLUDE (Patient, Vaccine, Time);
+CREATE INDEX IX_Reservations_Time ON Reservations (Time) INCLUDE (Caregiver);
+
+-- The primary key only serves lookups by day; this one serves lookups by caregiver.
+CREATE INDEX IX_Availabilities_Username ON Availabilities (Username, Time);
+
+-- Only vaccines that are in stock are ever offered.
+CREATE INDEX IX_Vaccines_InStock ON Vaccines (Name) INCLUDE (Doses) WHERE Doses > 0;
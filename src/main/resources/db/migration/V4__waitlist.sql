@@ -0,0 +1,10 @@
+-- Reserve requests that found no caregiver or no dose, in the order they arrived (by ID).
+CREATE TABLE Waitlist (
+    ID int,
+    Patient varchar(255) REFERENCES Patients,
+    Time date,
+    Vaccine varchar(255),
+    PRIMARY KEY (ID)
+);
+
+CREATE UNIQUE INDEX UX_Waitlist_Request ON Waitlist (Patient, Time, Vaccine);
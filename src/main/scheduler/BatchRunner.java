@@ -0,0 +1,122 @@
+package scheduler;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs a file of scheduler commands, one per line, in a single session without prompts.
+ *
+ * A reader thread reads and tokenizes lines ahead of execution through a bounded queue, so commands never
+ * wait on input, and responses are written through a large buffer instead of being flushed per line.
+ * Blank lines and lines starting with '#' are skipped. A summary with the number of commands, commands
+ * per second and failures is written to standard error at the end.
+ *
+ * Usage: java scheduler.Scheduler --batch <file>   (use - to read standard input)
+ */
+public class BatchRunner {
+
+    private static final int QUEUE_SIZE = 1024;
+    private static final String[] END = new String[0];
+
+    private final Scheduler scheduler;
+    private long commands = 0;
+    private long failures = 0;
+
+    public BatchRunner(PrintStream out) {
+        this.scheduler = new Scheduler(out);
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.out.println("Usage: java scheduler.Scheduler --batch <file|->");
+            return;
+        }
+        PrintStream out = new PrintStream(
+                new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+        try (InputStream in = args[0].equals("-") ? System.in : new FileInputStream(args[0])) {
+            Scheduler.preload();
+            BatchRunner runner = new BatchRunner(out);
+            long start = System.nanoTime();
+            runner.run(in);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            out.flush();
+            System.err.printf("Ran %d commands in %.3f s (%.0f commands/s), %d failed.%n",
+                    runner.getCommands(), seconds, seconds > 0 ? runner.getCommands() / seconds : 0.0,
+                    runner.getFailures());
+        } catch (IOException e) {
+            out.flush();
+            System.out.println("Could not read " + args[0]);
+        }
+    }
+
+    /**
+     * Executes every command in the input until it ends or a quit command is reached.
+     */
+    public void run(InputStream in) throws IOException {
+        BlockingQueue<String[]> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        IOException[] readError = new IOException[1];
+        Thread reader = new Thread(() -> {
+            try (BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    String[] tokens = Scheduler.tokenize(line);
+                    if (tokens.length > 0 && !tokens[0].startsWith("#")) {
+                        queue.put(tokens);
+                    }
+                }
+            } catch (IOException e) {
+                readError[0] = e;
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                queue.put(END);
+            } catch (InterruptedException e) {
+                // the runner has already stopped
+            }
+        }, "batch-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        try {
+            while (true) {
+                String[] tokens = queue.take();
+                if (tokens == END) {
+                    break;
+                }
+                commands++;
+                boolean more = scheduler.execute(tokens);
+                if (scheduler.lastCommandFailed()) {
+                    failures++;
+                }
+                if (!more) {
+                    reader.interrupt();
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (readError[0] != null) {
+            throw readError[0];
+        }
+    }
+
+    public long getCommands() {
+        return commands;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+}
@@ -1,50 +1,103 @@
 package scheduler;
 
+import scheduler.bulk.BulkImporter;
 import scheduler.db.ConnectionManager;
+import scheduler.journal.EventJournal;
+import scheduler.journal.JournalEvent;
+import scheduler.metrics.Metrics;
 import scheduler.model.Caregiver;
 import scheduler.model.Patient;
-import scheduler.model.Vaccine;
+import scheduler.service.AvailabilityIndex;
+import scheduler.service.CaregiverAssignment;
+import scheduler.service.ReservationColumns;
+import scheduler.service.ReservationEngine;
+import scheduler.service.ScheduleCache;
+import scheduler.service.UsernameIndex;
+import scheduler.service.VaccineInventory;
+import scheduler.service.Waitlist;
+import scheduler.server.SchedulerServer;
 import scheduler.util.Util;
 
 import javax.swing.plaf.basic.BasicInternalFrameTitlePane;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Date;
-import java.util.Random;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
 
 public class Scheduler {
 
     // objects to keep track of the currently logged-in user
     // Note: it is always true that at most one of currentCaregiver and currentPatient is not null
-    //       since only one user can be logged-in at a time
-    private static Caregiver currentCaregiver = null;
-    private static Patient currentPatient = null;
+    //       since only one user can be logged-in at a time in each session
+    private Caregiver currentCaregiver = null;
+    private Patient currentPatient = null;
+
+    // where the responses of this session are written
+    private final PrintStream out;
+
+    // set when the command being executed reports an error
+    private boolean failed = false;
+
+    private static final ReservationEngine reservationEngine = new ReservationEngine();
+
+    // show_appointments pages, so a long history never has to be read or printed at once
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    // every command except quit, by name
+    private static final Map<String, BiConsumer<Scheduler, String[]>> commands = new HashMap<>();
+
+    static {
+        commands.put("create_patient", Scheduler::createPatient);
+        commands.put("create_caregiver", Scheduler::createCaregiver);
+        commands.put("login_patient", Scheduler::loginPatient);
+        commands.put("login_caregiver", Scheduler::loginCaregiver);
+        commands.put("search_caregiver_schedule", Scheduler::searchCaregiverSchedule);
+        commands.put("reserve", Scheduler::reserve);
+        commands.put("upload_availability", Scheduler::uploadAvailability);
+        commands.put("cancel", Scheduler::cancel);
+        commands.put("cancel_day", Scheduler::cancelDay);
+        commands.put("add_doses", Scheduler::addDoses);
+        commands.put("show_appointments", Scheduler::showAppointments);
+        commands.put("bulk_import", Scheduler::bulkImport);
+        commands.put("report", Scheduler::report);
+        commands.put("logout", Scheduler::logout);
+    }
+
+    public Scheduler(PrintStream out) {
+        this.out = out;
+    }
 
     public static void main(String[] args) {
+        // java scheduler.Scheduler --server <port> serves many sessions over TCP instead of stdin
+        if (args.length == 2 && args[0].equals("--server")) {
+            SchedulerServer.main(new String[]{args[1]});
+            return;
+        }
+        // java scheduler.Scheduler --batch <file|-> runs a command script without prompts
+        if (args.length == 2 && args[0].equals("--batch")) {
+            BatchRunner.main(new String[]{args[1]});
+            return;
+        }
+
         // printing greetings text
-        System.out.println();
-        System.out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
-        System.out.println("*** Please enter one of the following commands ***");
-        System.out.println("> create_patient <username> <password>");
-        System.out.println("> create_caregiver <username> <password>");
-        System.out.println("> login_patient <username> <password>");
-        System.out.println("> login_caregiver <username> <password>");
-        System.out.println("> search_caregiver_schedule <date>");  // TODO: implement search_caregiver_schedule (Part 2)
-        System.out.println("> reserve <date> <vaccine>");  // TODO: implement reserve (Part 2)
-        System.out.println("> upload_availability <date>");
-        System.out.println("> cancel <appointment_id>");  // TODO: implement cancel (extra credit)
-        System.out.println("> add_doses <vaccine> <number>");
-        System.out.println("> show_appointments");  // TODO: implement show_appointments (Part 2)
-        System.out.println("> logout");  // TODO: implement logout (Part 2)
-        System.out.println("> quit");
-        System.out.println();
+        printMenu(System.out);
+
+        preload();
 
         // read input from user
+        Scheduler scheduler = new Scheduler(System.out);
         BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
         while (true) {
             System.out.print("> ");
@@ -54,60 +107,141 @@ public class Scheduler {
             } catch (IOException e) {
                 System.out.println("Please try again!");
             }
-            // split the user input by spaces
-            String[] tokens = response.split(" ");
-            // check if input exists
-            if (tokens.length == 0) {
-                System.out.println("Please try again!");
-                continue;
-            }
-            // determine which operation to perform
-            String operation = tokens[0];
-            if (operation.equals("create_patient")) {
-                createPatient(tokens);
-            } else if (operation.equals("create_caregiver")) {
-                createCaregiver(tokens);
-            } else if (operation.equals("login_patient")) {
-                loginPatient(tokens);
-            } else if (operation.equals("login_caregiver")) {
-                loginCaregiver(tokens);
-            } else if (operation.equals("search_caregiver_schedule")) {
-                searchCaregiverSchedule(tokens);
-            } else if (operation.equals("reserve")) {
-                reserve(tokens);
-            } else if (operation.equals("upload_availability")) {
-                uploadAvailability(tokens);
-            } else if (operation.equals("cancel")) {
-                cancel(tokens);
-            } else if (operation.equals("add_doses")) {
-                addDoses(tokens);
-            } else if (operation.equals("show_appointments")) {
-                showAppointments(tokens);
-            } else if (operation.equals("logout")) {
-                logout(tokens);
-            } else if (operation.equals("quit")) {
+            if (response == null) {
+                // end of input behaves like quit
                 System.out.println("Bye!");
                 return;
-            } else {
-                System.out.println("Invalid operation name!");
+            }
+            if (!scheduler.execute(response)) {
+                return;
+            }
+        }
+    }
+
+    public static void printMenu(PrintStream out) {
+        out.println();
+        out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
+        out.println("*** Please enter one of the following commands ***");
+        out.println("> create_patient <username> <password>");
+        out.println("> create_caregiver <username> <password>");
+        out.println("> login_patient <username> <password>");
+        out.println("> login_caregiver <username> <password>");
+        out.println("> search_caregiver_schedule <date>");
+        out.println("> search_caregiver_schedule <start> <end> [names]");
+        out.println("> reserve <date> <vaccine>");
+        out.println("> upload_availability <date>");
+        out.println("> upload_availability <start> <end> [weekday-mask]");
+        out.println("> cancel <appointment_id>");
+        out.println("> cancel_day <date>");
+        out.println("> add_doses <vaccine> <number>");
+        out.println("> show_appointments [<from> <to>] [after <id>] [limit <n>]");
+        out.println("> bulk_import <patients|caregivers|vaccines|availabilities> <csv_file>");
+        out.println("> report <doses|caregivers|utilization> <start> <end>");
+        out.println("> logout");
+        out.println("> quit");
+        out.println();
+    }
+
+    /**
+     * Loads the shared in-memory indexes up front so the first command does not pay for it.
+     */
+    public static void preload() {
+        Metrics.startDumpFromSettings();
+        try {
+            UsernameIndex.patients().load();
+            UsernameIndex.caregivers().load();
+        } catch (SQLException e) {
+            System.out.println("Error occurred when loading usernames");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs one command line for this session and returns false once the session should end.
+     */
+    public boolean execute(String response) {
+        return execute(tokenize(response));
+    }
+
+    /**
+     * Runs one already tokenized command for this session and returns false once the session should end.
+     */
+    public boolean execute(String[] tokens) {
+        failed = false;
+        // check if input exists
+        if (tokens.length == 0) {
+            fail("Please try again!");
+            return true;
+        }
+        // determine which operation to perform
+        String operation = tokens[0];
+        if (operation.equals("quit")) {
+            out.println("Bye!");
+            return false;
+        }
+        BiConsumer<Scheduler, String[]> command = commands.get(operation);
+        if (command == null) {
+            fail("Invalid operation name!");
+            return true;
+        }
+        Metrics.Timer timer = Metrics.timer("command." + operation);
+        long start = System.nanoTime();
+        command.accept(this, tokens);
+        timer.recordSince(start);
+        if (failed) {
+            timer.recordError();
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the last executed command reported an error.
+     */
+    public boolean lastCommandFailed() {
+        return failed;
+    }
+
+    /**
+     * Splits a command line on runs of whitespace.
+     */
+    public static String[] tokenize(String line) {
+        List<String> tokens = new ArrayList<>(4);
+        int length = line.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && !Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                tokens.add(line.substring(start, i));
             }
         }
+        return tokens.toArray(new String[0]);
+    }
+
+    private void fail(String message) {
+        failed = true;
+        out.println(message);
     }
 
     //part 1
-    private static void createPatient(String[] tokens) {
+    private void createPatient(String[] tokens) {
         if(tokens.length != 3) {
-            System.out.println("Failed to create user.");
+            fail("Failed to create user.");
             return;
         }
         String username = tokens[1];
         String password = tokens[2];
-        if(!checkStrongPassword(tokens[2])) {
-            System.out.println("Please use a strong password!");
+        if(!Util.checkStrongPassword(tokens[2])) {
+            fail("Please use a strong password!");
             return;
         }
         if (usernameExistsPatient(username)) {
-            System.out.println("Username taken, try again!");
+            fail("Username taken, try again!");
             return;
         }
         byte[] salt = Util.generateSalt();
@@ -116,29 +250,30 @@ public class Scheduler {
         try {
             Patient patient = new Patient.PatientBuilder(username, salt, hash).build();
             patient.saveToDB();
-            System.out.println("Created user " + username);
+            UsernameIndex.patients().added(username);
+            out.println("Created user " + username);
         } catch(SQLException e) {
-            System.out.println("Failed to create user.");
+            fail("Failed to create user.");
             e.printStackTrace();
         }
     }
 
-    private static void createCaregiver(String[] tokens) {
+    private void createCaregiver(String[] tokens) {
         // create_caregiver <username> <password>
         // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
+            fail("Failed to create user.");
             return;
         }
         String username = tokens[1];
         String password = tokens[2];
-        if(!checkStrongPassword(tokens[2])) {
-            System.out.println("Please use a strong password!");
+        if(!Util.checkStrongPassword(tokens[2])) {
+            fail("Please use a strong password!");
             return;
         }
         // check 2: check if the username has been taken already
         if (usernameExistsCaregiver(username)) {
-            System.out.println("Username taken, try again!");
+            fail("Username taken, try again!");
             return;
         }
         byte[] salt = Util.generateSalt();
@@ -148,93 +283,45 @@ public class Scheduler {
             Caregiver caregiver = new Caregiver.CaregiverBuilder(username, salt, hash).build(); 
             // save to caregiver information to our database
             caregiver.saveToDB();
-            System.out.println("Created user " + username);
+            UsernameIndex.caregivers().added(username);
+            out.println("Created user " + username);
         } catch (SQLException e) {
-            System.out.println("Failed to create user.");
+            fail("Failed to create user.");
             e.printStackTrace();
         }
     }
 
-    private static boolean checkStrongPassword(String password) {
-        boolean lengthStrain = false;
-        boolean lower = false;
-        boolean upper = false;
-        boolean num = false;
-        boolean letter = false;
-        boolean specialChar = false;
-
-        lengthStrain = (password.length() >= 8);
-        for (int i = 0; i < password.length(); i++) {
-            char temp = password.charAt(i);
-            if(Character.isDigit(temp)) {
-                num = true;
-            } else if(Character.isLetter(temp)) {
-                letter = true;
-                if(Character.isLowerCase(temp)) {
-                    lower = true;
-                } else {
-                    upper = true;
-                }
-            } else if (temp == '?' || temp == '@' || temp == '#' || temp == '!') {
-                specialChar = true;
-            } else {
-                return false;
-            }
-        }
-
-        return letter && num && lengthStrain && lower && upper && specialChar;
-    }
-
     //part 1
-    private static boolean usernameExistsPatient(String username) {
+    private boolean usernameExistsPatient(String username) {
         //check if username exists for patient
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String selectUsername = "SELECT * FROM Patients WHERE Username = ?";
-        try{
-            PreparedStatement statement = con.prepareStatement(selectUsername);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            return resultSet.isBeforeFirst();
-        } catch(SQLException e){
-            System.out.println("Error occurred when checking username");
+        try {
+            return UsernameIndex.patients().exists(username);
+        } catch (SQLException e) {
+            fail("Error occurred when checking username");
             e.printStackTrace();
-        } finally {
-            cm.closeConnection();
         }
         return true;
     }
 
-    private static boolean usernameExistsCaregiver(String username) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String selectUsername = "SELECT * FROM Caregivers WHERE Username = ?";
+    private boolean usernameExistsCaregiver(String username) {
         try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
-            return resultSet.isBeforeFirst();
+            return UsernameIndex.caregivers().exists(username);
         } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
+            fail("Error occurred when checking username");
             e.printStackTrace();
-        } finally {
-            cm.closeConnection();
         }
         return true;
     }
 
     //part 1
-    private static void loginPatient(String[] tokens) {
+    private void loginPatient(String[] tokens) {
         if(currentPatient != null || currentCaregiver != null){
-            System.out.println("User already logged in.");
+            fail("User already logged in.");
             return;
         }
 
         if(tokens.length != 3) {
-            System.out.println("Login failed.");
+            fail("Login failed.");
             return;
         }
         String username = tokens[1];
@@ -243,28 +330,28 @@ public class Scheduler {
         try{
             patient = new Patient.PatientGetter(username, password).get();
         } catch(SQLException e) {
-            System.out.println("Login failed.");
+            fail("Login failed.");
             e.printStackTrace();
         }
 
         if(patient == null) {
-            System.out.println("Login failed.");
+            fail("Login failed.");
         } else {
-            System.out.println("Logged in as: " + username);
+            out.println("Logged in as: " + username);
             currentPatient = patient;
         }
     }
 
-    private static void loginCaregiver(String[] tokens) {
+    private void loginCaregiver(String[] tokens) {
         // login_caregiver <username> <password>
         // check 1: if someone's already logged-in, they need to log out first
         if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
+            fail("User already logged in.");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Login failed.");
+            fail("Login failed.");
             return;
         }
         String username = tokens[1];
@@ -274,25 +361,30 @@ public class Scheduler {
         try {
             caregiver = new Caregiver.CaregiverGetter(username, password).get();
         } catch (SQLException e) {
-            System.out.println("Login failed.");
+            fail("Login failed.");
             e.printStackTrace();
         }
         // check if the login was successful
         if (caregiver == null) {
-            System.out.println("Login failed.");
+            fail("Login failed.");
         } else {
-            System.out.println("Logged in as: " + username);
+            out.println("Logged in as: " + username);
             currentCaregiver = caregiver;
         }
     }
 
-    private static void searchCaregiverSchedule(String[] tokens){
+    private void searchCaregiverSchedule(String[] tokens){
         if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
+            fail("Please login first!");
+            return;
+        }
+        // search_caregiver_schedule <start> <end> [names]
+        if (tokens.length == 3 || (tokens.length == 4 && tokens[3].equals("names"))) {
+            searchCaregiverScheduleRange(tokens);
             return;
         }
         if(tokens.length != 2) {
-            System.out.println("Please try again!");
+            fail("Please try again!");
             return;
         }
 
@@ -301,317 +393,536 @@ public class Scheduler {
         String[] temp = date.split("-");
         if(!(temp.length == 3 &&
                 (temp[0].length() == 4 && temp[1].length() == 2 && temp[2].length() == 2))){
-            System.out.println("Please try again with valid date!");
+            fail("Please try again with valid date!");
             return;
         }
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-        String selectAvailable = "SELECT Username FROM Availabilities WHERE Time = ? ORDER BY Username ASC";
-        String selectDoses = "SELECT * FROM Vaccines WHERE Doses > 0";
-        try{
-            PreparedStatement statement1 = con.prepareStatement(selectAvailable);
-            PreparedStatement statement2 = con.prepareStatement(selectDoses);
-            statement1.setString(1, date);
-            ResultSet rs1 = statement1.executeQuery();
-            ResultSet rs2 = statement2.executeQuery();
-            System.out.println("Available caregivers on selected date:");
-            System.out.print("| ");
-            while(rs1.next()){
-                System.out.print(rs1.getString(1) + " | ");
+        ScheduleCache cache = ScheduleCache.getInstance();
+        try {
+            List<String> caregivers = cache.caregiversOn(Date.valueOf(date));
+            Map<String, Integer> vaccines = VaccineInventory.getInstance().inStock();
+            out.println("Available caregivers on selected date:");
+            out.print("| ");
+            for (String caregiver : caregivers) {
+                out.print(caregiver + " | ");
             }
-            System.out.println();
+            out.println();
 
-            System.out.println("Available vaccines:");
-            System.out.print("| ");
-            while(rs2.next()){
-                System.out.print(rs2.getString(1)  + " " + rs2.getInt(2) + " | ");
+            out.println("Available vaccines:");
+            out.print("| ");
+            for (Map.Entry<String, Integer> vaccine : vaccines.entrySet()) {
+                out.print(vaccine.getKey() + " " + vaccine.getValue() + " | ");
             }
-            System.out.println();
+            out.println();
+        } catch (IllegalArgumentException e) {
+            fail("Please try again with valid date!");
         } catch (SQLException e) {
-            System.out.println("Please try again!");
+            fail("Please try again!");
             e.printStackTrace();
-        } finally {
-            cm.closeConnection();
         }
+    }
 
+    private void searchCaregiverScheduleRange(String[] tokens) {
+        boolean names = tokens.length == 4;
+        try {
+            AvailabilityIndex.DayCount[] days = AvailabilityIndex.getInstance()
+                    .search(Date.valueOf(tokens[1]), Date.valueOf(tokens[2]));
+            Map<String, Integer> vaccines = VaccineInventory.getInstance().inStock();
+            StringBuilder sb = new StringBuilder("Available caregivers per date:\n");
+            for (AvailabilityIndex.DayCount day : days) {
+                sb.append(day.getDate()).append(' ').append(day.getCount());
+                if (names && day.getCount() > 0) {
+                    sb.append(" | ");
+                    for (String caregiver : day.getCaregivers()) {
+                        sb.append(caregiver).append(" | ");
+                    }
+                }
+                sb.append('\n');
+            }
+            sb.append("Available vaccines:\n| ");
+            for (Map.Entry<String, Integer> vaccine : vaccines.entrySet()) {
+                sb.append(vaccine.getKey()).append(' ').append(vaccine.getValue()).append(" | ");
+            }
+            out.println(sb);
+        } catch (IllegalArgumentException e) {
+            fail("Please enter a valid date range of at most " + AvailabilityIndex.MAX_SEARCH_DAYS + " days!");
+        } catch (SQLException e) {
+            fail("Please try again!");
+            e.printStackTrace();
+        }
     }
 
-    private static void reserve(String[] tokens) {
+    private void reserve(String[] tokens) {
         if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
+            fail("Please login first!");
             return;
         } else if (currentCaregiver != null && currentPatient == null) {
-            System.out.println("Please login as a patient!");
+            fail("Please login as a patient!");
+            return;
         }
         if(tokens.length != 3) {
-            System.out.println("Please try again!");
+            fail("Please try again!");
+            return;
+        }
+        Date date;
+        try {
+            date = Date.valueOf(tokens[1]);
+        } catch (IllegalArgumentException e) {
+            fail("Please try again!");
             return;
         }
 
-        int reserveID = generateReserveID();
-        if(reserveID <= 0){
-            System.out.println("Please try again!");
-        } else {
-            updateReservation(tokens[1], tokens[2], reserveID);
+        ReservationEngine.Result result = reservationEngine.reserve(currentPatient.getUsername(), date, tokens[2]);
+        if (result.getStatus() == ReservationEngine.Status.BOOKED) {
+            ScheduleCache.getInstance().invalidateDate(date);
+            AvailabilityIndex.getInstance().removed(date, result.getCaregiver());
+            try {
+                Waitlist.getInstance().withdraw(currentPatient.getUsername(), date, tokens[2]);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        switch (result.getStatus()) {
+            case BOOKED:
+                out.println("Appointment ID: " + result.getReserveID() +
+                        ", Caregiver username: " + result.getCaregiver());
+                break;
+            case NO_DOSES:
+                fail("Not enough available doses!");
+                joinWaitlist(date, tokens[2]);
+                break;
+            case NO_CAREGIVER:
+                fail("No Caregiver is available!");
+                joinWaitlist(date, tokens[2]);
+                break;
+            default:
+                fail("Please try again!");
         }
     }
 
-    private static int generateReserveID(){
-        Random rand = new Random();
-        String result;
-
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-        boolean flag = false;
-        try{
-            result = "";
-            int intResult = -1;
-            while(!flag){
-                for(int i = 0; i < 7; i++) {
-                    result += rand.nextInt(10);
-                }
-                intResult = Integer.parseInt(result);
-                String checkUnique = "SELECT * FROM Reservations WHERE ID = ?";
-                PreparedStatement statement = con.prepareStatement(checkUnique);
-                statement.setInt(1, intResult);
-                ResultSet rs = statement.executeQuery();
-                flag = !rs.isBeforeFirst();
-            }
-            return intResult;
-        } catch(SQLException e) {
-            System.out.println("Please try again!");
-        } finally {
-            cm.closeConnection();
+    private void joinWaitlist(Date date, String vaccine) {
+        try {
+            int position = Waitlist.getInstance().add(currentPatient.getUsername(), date, vaccine);
+            out.println("You are number " + position + " on the waitlist for " + vaccine + " on " + date +
+                    "; the appointment will be booked as soon as possible.");
+        } catch (IllegalArgumentException e) {
+            out.println("Cannot join the waitlist: " + e.getMessage());
+        } catch (SQLException e) {
+            fail("Error occurred when joining the waitlist");
+            e.printStackTrace();
         }
-        return -1;
     }
 
-    private static void updateReservation(String date, String vaccine, int reserveID) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-        String updateStatement = "INSERT INTO Reservations VALUES (?, ?, ?, ?, ?)";
+    private void uploadAvailability(String[] tokens) {
+        // upload_availability <date>
+        // upload_availability <start> <end> [weekday-mask]
+        // check 1: check if the current logged-in user is a caregiver
+        if (currentCaregiver == null) {
+            fail("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be 2 for a single date, or 3 to 4 for a range of dates
+        if (tokens.length == 3 || tokens.length == 4) {
+            uploadAvailabilityRange(tokens);
+            return;
+        }
+        if (tokens.length != 2) {
+            fail("Please try again!");
+            return;
+        }
+        String date = tokens[1];
         try {
-            PreparedStatement statement = con.prepareStatement(updateStatement);
-            statement.setInt(1, reserveID);
-            String caregiver = checkAvailability(date, vaccine);
-            if(caregiver == null) {
-                return;
-            }
-            if(!updateValues(date, caregiver, vaccine)) {
-                System.out.println("Please try again!");
+            Date d = Date.valueOf(date);
+            currentCaregiver.uploadAvailability(d);
+            ScheduleCache.getInstance().invalidateDate(d);
+            CaregiverAssignment.getInstance().added(d, currentCaregiver.getUsername());
+            AvailabilityIndex.getInstance().added(d, currentCaregiver.getUsername());
+            Waitlist.getInstance().availabilityAdded(d, currentCaregiver.getUsername());
+            EventJournal.getInstance().append(JournalEvent.availabilityUploaded(currentCaregiver.getUsername(), d));
+            out.println("Availability uploaded!");
+        } catch (IllegalArgumentException e) {
+            fail("Please enter a valid date!");
+        } catch (SQLException e) {
+            fail("Error occurred when uploading availability");
+            e.printStackTrace();
+        }
+    }
+
+    private void uploadAvailabilityRange(String[] tokens) {
+        int weekdayMask = Caregiver.ALL_WEEKDAYS;
+        if (tokens.length == 4) {
+            weekdayMask = parseWeekdayMask(tokens[3]);
+            if (weekdayMask < 0) {
+                fail("Please enter the weekdays as 7 digits of 0 or 1, Monday first!");
                 return;
             }
-            statement.setString(2, currentPatient.getUsername());
-            statement.setString(3, caregiver);
-            statement.setString(4, vaccine);
-            statement.setString(5, date);
-            if(statement.executeUpdate() != 1) {
-                System.out.println("Please try again!");
-                return;
+        }
+        try {
+            Date start = Date.valueOf(tokens[1]);
+            Date end = Date.valueOf(tokens[2]);
+            Caregiver.AvailabilityUpload upload = currentCaregiver.uploadAvailability(start, end, weekdayMask);
+            ScheduleCache.getInstance().invalidateRange(start, end);
+            CaregiverAssignment assignment = CaregiverAssignment.getInstance();
+            AvailabilityIndex index = AvailabilityIndex.getInstance();
+            Waitlist waitlist = Waitlist.getInstance();
+            EventJournal journal = EventJournal.getInstance();
+            // only the days actually inserted; the ones already uploaded changed nothing
+            for (Date day : upload.getDates()) {
+                assignment.added(day, currentCaregiver.getUsername());
+                index.added(day, currentCaregiver.getUsername());
+                waitlist.availabilityAdded(day, currentCaregiver.getUsername());
+                journal.append(JournalEvent.availabilityUploaded(currentCaregiver.getUsername(), day));
             }
-            System.out.println("Appointment ID: " + reserveID +", Caregiver username: " + caregiver);
+            out.println("Availability uploaded! Inserted " + upload.getInserted() +
+                    ", skipped " + upload.getSkipped() + " already uploaded.");
+        } catch (IllegalArgumentException e) {
+            fail("Please enter a valid date range!");
         } catch (SQLException e) {
-            System.out.println("Please try again!");
+            fail("Error occurred when uploading availability");
             e.printStackTrace();
-        } finally {
-            cm.closeConnection();
         }
     }
 
-    private static String checkAvailability(String date, String vaccine) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-        String selectCaregiver = "SELECT TOP 1 Username FROM Availabilities WHERE Time = ?";
-        String checkVaccine = "SELECT * FROM Vaccines WHERE Name = ? AND Doses >= 1";
-        try {
-            PreparedStatement stVaccine = con.prepareStatement(checkVaccine);
-            stVaccine.setString(1, vaccine);
-            if(!stVaccine.executeQuery().isBeforeFirst()) {
-                System.out.println("Not enough available doses!");
-                return null;
+    // "1111100" means Monday to Friday; returns -1 if the mask is malformed
+    private static int parseWeekdayMask(String mask) {
+        if (mask.length() != 7) {
+            return -1;
+        }
+        int result = 0;
+        for (int i = 0; i < 7; i++) {
+            char c = mask.charAt(i);
+            if (c == '1') {
+                result |= 1 << i;
+            } else if (c != '0') {
+                return -1;
             }
-            PreparedStatement stCaregiver = con.prepareStatement(selectCaregiver);
-            stCaregiver.setString(1, date);
-            ResultSet rs = stCaregiver.executeQuery();
-            if (!rs.isBeforeFirst()) {
-                System.out.println("No Caregiver is available!");
-                return null;
-            } else {
-                rs.next();
-                return rs.getString(1);
-            }
-        } catch(SQLException e) {
-            System.out.println("Please try again!");
-            e.printStackTrace();
-        } finally {
-            cm.closeConnection();
         }
-        return null;
+        return result;
     }
 
-    private static boolean updateValues(String date, String caregiver, String vaccine) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-        String Available = "DELETE FROM Availabilities WHERE Time = ? AND Username = ?";
-        String Vaccine = "UPDATE Vaccines SET Doses = doses - 1 WHERE Name = ?";
-        try{
-            PreparedStatement stAvailable = con.prepareStatement(Available);
-            stAvailable.setString(1, date);
-            stAvailable.setString(2, caregiver);
-            boolean flag1 = (stAvailable.executeUpdate() == 1);
-            PreparedStatement stVaccine = con.prepareStatement(Vaccine);
-            stVaccine.setString(1, vaccine);
-            boolean flag2 = (stVaccine.executeUpdate() == 1);
-            return flag1 && flag2;
-        } catch(SQLException e) {
-            System.out.println("Please try again!");
+    private void cancel(String[] tokens) {
+        // cancel <appointment_id>
+        if (currentCaregiver == null && currentPatient == null) {
+            fail("Please login first!");
+            return;
+        }
+        if (tokens.length != 2) {
+            fail("Please try again!");
+            return;
+        }
+        int reserveID;
+        try {
+            reserveID = Integer.parseInt(tokens[1]);
+        } catch (NumberFormatException e) {
+            fail("Please enter a valid appointment ID!");
+            return;
+        }
+        String user = currentPatient != null ? currentPatient.getUsername() : currentCaregiver.getUsername();
+        try {
+            List<ReservationEngine.Booking> cancelled =
+                    reservationEngine.cancel(reserveID, user, currentPatient == null);
+            if (cancelled.isEmpty()) {
+                fail("No appointment with ID " + reserveID + " was found!");
+                return;
+            }
+            cancelled(cancelled);
+            out.println("Appointment " + reserveID + " cancelled!");
+        } catch (SQLException e) {
+            fail("Error occurred when cancelling the appointment");
             e.printStackTrace();
-        } finally {
-            cm.closeConnection();
         }
-        return false;
     }
 
-    private static void uploadAvailability(String[] tokens) {
-        // upload_availability <date>
-        // check 1: check if the current logged-in user is a caregiver
+    private void cancelDay(String[] tokens) {
+        // cancel_day <date>
         if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+            fail("Please login as a caregiver first!");
             return;
         }
-        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
         if (tokens.length != 2) {
-            System.out.println("Please try again!");
+            fail("Please try again!");
             return;
         }
-        String date = tokens[1];
         try {
-            Date d = Date.valueOf(date);
-            currentCaregiver.uploadAvailability(d);
-            System.out.println("Availability uploaded!");
+            Date date = Date.valueOf(tokens[1]);
+            // the caregiver is clearing the day, so the waitlist must not fill it again as soon as it is free
+            Waitlist.getInstance().hold(date, currentCaregiver.getUsername());
+            List<ReservationEngine.Booking> cancelled = reservationEngine.cancelDay(currentCaregiver.getUsername(), date);
+            cancelled(cancelled);
+            out.println("Cancelled " + cancelled.size() + " appointments on " + date + "!");
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date!");
+            fail("Please enter a valid date!");
         } catch (SQLException e) {
-            System.out.println("Error occurred when uploading availability");
+            fail("Error occurred when cancelling appointments");
             e.printStackTrace();
         }
     }
 
-    private static void cancel(String[] tokens) {
-
+    // the slots are available again, the appointments gone from the reports and the waitlist can use the
+    // slots that are not held and the doses
+    private static void cancelled(List<ReservationEngine.Booking> bookings) throws SQLException {
+        ReservationColumns columns = ReservationColumns.getInstance();
+        Waitlist waitlist = Waitlist.getInstance();
+        for (ReservationEngine.Booking booking : bookings) {
+            ScheduleCache.getInstance().invalidateDate(booking.getDate());
+            AvailabilityIndex.getInstance().added(booking.getDate(), booking.getCaregiver());
+            columns.removed(booking.getReserveID());
+            waitlist.dateChanged(booking.getDate());
+            waitlist.vaccineChanged(booking.getVaccine());
+        }
     }
 
-    private static void addDoses(String[] tokens) {
+    private void addDoses(String[] tokens) {
         // add_doses <vaccine> <number>
         // check 1: check if the current logged-in user is a caregiver
         if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+            fail("Please login as a caregiver first!");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Please try again!");
+            fail("Please try again!");
             return;
         }
         String vaccineName = tokens[1];
-        int doses = Integer.parseInt(tokens[2]);
-        Vaccine vaccine = null;
+        int doses;
+        try {
+            doses = Integer.parseInt(tokens[2]);
+        } catch (NumberFormatException e) {
+            fail("Please try again!");
+            return;
+        }
+        if (doses <= 0) {
+            fail("Please try again!");
+            return;
+        }
         try {
-            vaccine = new Vaccine.VaccineGetter(vaccineName).get();
+            VaccineInventory.getInstance().addDoses(vaccineName, doses);
+            Waitlist.getInstance().vaccineChanged(vaccineName);
+            EventJournal.getInstance().append(JournalEvent.dosesAdded(vaccineName, doses));
         } catch (SQLException e) {
-            System.out.println("Error occurred when adding doses");
+            fail("Error occurred when adding doses");
             e.printStackTrace();
+            return;
         }
-        // check 3: if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
-        //          table
-        if (vaccine == null) {
-            try {
-                vaccine = new Vaccine.VaccineBuilder(vaccineName, doses).build();
-                vaccine.saveToDB();
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
-            }
-        } else {
-            // if the vaccine is not null, meaning that the vaccine already exists in our table
-            try {
-                vaccine.increaseAvailableDoses(doses);
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
-            }
-        }
-        System.out.println("Doses updated!");
+        out.println("Doses updated!");
     }
 
-    private static void showAppointments(String[] tokens) {
+    private void showAppointments(String[] tokens) {
+        // show_appointments [<from> <to>] [after <id>] [limit <n>]
         if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
+            fail("Please login first!");
             return;
         }
-        if(tokens.length != 1) {
-            System.out.println("Please try again!");
+        Date from = null;
+        Date to = null;
+        int after = 0;
+        int limit = DEFAULT_PAGE_SIZE;
+        int i = 1;
+        try {
+            if (tokens.length >= 3 && !tokens[1].equals("after") && !tokens[1].equals("limit")) {
+                from = Date.valueOf(tokens[1]);
+                to = Date.valueOf(tokens[2]);
+                i = 3;
+            }
+            for (; i + 1 < tokens.length; i += 2) {
+                if (tokens[i].equals("after")) {
+                    after = Integer.parseInt(tokens[i + 1]);
+                } else if (tokens[i].equals("limit")) {
+                    limit = Integer.parseInt(tokens[i + 1]);
+                } else {
+                    break;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException is an IllegalArgumentException too
+            fail("Please try again!");
             return;
         }
+        if (i != tokens.length || limit <= 0 || limit > MAX_PAGE_SIZE) {
+            fail("Please try again!");
+            return;
+        }
+
+        String select = "SELECT ID, Patient, Caregiver, Vaccine, Time FROM Reservations WHERE ";
         String current;
-        int reservationID;
-        String patient;
-        String caregiver;
-        String vaccine;
-        String date;
-        String select = "SELECT * FROM Reservations WHERE ";
-
-        if(currentPatient != null) {
-            select = select + "Patient = ? ";
+        if (currentPatient != null) {
+            select += "Patient = ?";
             current = currentPatient.getUsername();
         } else {
-            select = select + "Caregiver = ? ";
+            select += "Caregiver = ?";
             current = currentCaregiver.getUsername();
         }
-        select += " ORDER BY ID ASC";
+        if (from != null) {
+            select += " AND Time >= ? AND Time <= ?";
+        }
+        // keyset pagination: the next page starts after the last ID shown, so no page scans the ones before it
+        select += " AND ID > ? ORDER BY ID ASC";
+
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
-        try {
-            PreparedStatement statement = con.prepareStatement(select);
-            statement.setString(1, current);
+        try (PreparedStatement statement = con.prepareStatement(select)) {
+            int parameter = 1;
+            statement.setString(parameter++, current);
+            if (from != null) {
+                statement.setDate(parameter++, from);
+                statement.setDate(parameter++, to);
+            }
+            statement.setInt(parameter, after);
+            // one row more than the page tells whether there is a next page; set on the statement rather
+            // than in the SQL so every page size shares one statement text
+            statement.setMaxRows(limit + 1);
+            statement.setFetchSize(Math.min(limit + 1, ConnectionManager.getFetchSize()));
             ResultSet rs = statement.executeQuery();
-            System.out.println("Current reservations:");
-            while(rs.next()){
-                reservationID = rs.getInt(1);
-                patient = rs.getString(2);
-                caregiver = rs.getString(3);
-                vaccine = rs.getString(4);
-                date = rs.getString(5);
-                System.out.print(reservationID + " " + vaccine + " " + date + " ");
-                if(currentPatient != null) {
-                    System.out.println(caregiver);
-                } else {
-                    System.out.println(patient);
+
+            StringBuilder sb = new StringBuilder("Current reservations:\n");
+            int rows = 0;
+            int lastID = after;
+            while (rs.next()) {
+                if (rows == limit) {
+                    sb.append("More appointments: show_appointments ");
+                    if (from != null) {
+                        sb.append(from).append(' ').append(to).append(' ');
+                    }
+                    sb.append("after ").append(lastID).append(" limit ").append(limit).append('\n');
+                    break;
                 }
+                lastID = rs.getInt(1);
+                sb.append(lastID).append(' ').append(rs.getString(4)).append(' ').append(rs.getString(5))
+                        .append(' ').append(currentPatient != null ? rs.getString(3) : rs.getString(2)).append('\n');
+                rows++;
             }
+            out.print(sb);
         } catch(SQLException e) {
-            System.out.println("Please try again!");
+            fail("Please try again!");
             e.printStackTrace();
         } finally {
             cm.closeConnection();
         }
     }
 
-    private static void logout(String[] tokens) {
+    private void report(String[] tokens) {
+        // report <doses|caregivers|utilization> <start> <end>
+        if (currentCaregiver == null) {
+            fail("Please login as a caregiver first!");
+            return;
+        }
+        if (tokens.length != 4) {
+            fail("Please try again!");
+            return;
+        }
+        Date start;
+        Date end;
+        try {
+            start = Date.valueOf(tokens[2]);
+            end = Date.valueOf(tokens[3]);
+        } catch (IllegalArgumentException e) {
+            fail("Please enter a valid date range!");
+            return;
+        }
+        if (end.before(start) || end.toLocalDate().toEpochDay() - start.toLocalDate().toEpochDay()
+                >= AvailabilityIndex.MAX_SEARCH_DAYS) {
+            fail("Please enter a valid date range of at most " + AvailabilityIndex.MAX_SEARCH_DAYS + " days!");
+            return;
+        }
+        ReservationColumns columns = ReservationColumns.getInstance();
+        StringBuilder sb = new StringBuilder();
+        try {
+            columns.refresh();
+            switch (tokens[1]) {
+                case "doses":
+                    ReservationColumns.DosesPerDay doses = columns.dosesPerDay(start, end);
+                    sb.append("Appointments per vaccine per day:\n");
+                    for (int day = 0; day < doses.getDays(); day++) {
+                        for (int vaccine = 0; vaccine < doses.getVaccines().length; vaccine++) {
+                            int count = doses.getCount(day, vaccine);
+                            if (count > 0) {
+                                sb.append(doses.getDate(day)).append(' ').append(doses.getVaccines()[vaccine])
+                                        .append(' ').append(count).append('\n');
+                            }
+                        }
+                    }
+                    break;
+                case "caregivers":
+                    sb.append("Appointments per caregiver:\n");
+                    for (Map.Entry<String, Integer> entry : columns.appointmentsPerCaregiver(start, end).entrySet()) {
+                        sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+                    }
+                    break;
+                case "utilization":
+                    int[] booked = columns.appointmentsPerDay(start, end);
+                    int[] free = AvailabilityIndex.getInstance().countFree(start, end);
+                    sb.append("Booked / uploaded caregiver slots per day:\n");
+                    for (int day = 0; day < booked.length; day++) {
+                        int uploaded = booked[day] + free[day];
+                        sb.append(Date.valueOf(start.toLocalDate().plusDays(day))).append(' ')
+                                .append(booked[day]).append('/').append(uploaded);
+                        if (uploaded > 0) {
+                            sb.append(' ').append(100 * booked[day] / uploaded).append('%');
+                        }
+                        sb.append('\n');
+                    }
+                    break;
+                default:
+                    fail("Please choose one of doses, caregivers or utilization!");
+                    return;
+            }
+            out.print(sb);
+        } catch (SQLException e) {
+            fail("Error occurred when building the report");
+            e.printStackTrace();
+        }
+    }
+
+    private void bulkImport(String[] tokens) {
+        // bulk_import <patients|caregivers|vaccines|availabilities> <csv_file>
+        if (currentCaregiver == null) {
+            fail("Please login as a caregiver first!");
+            return;
+        }
+        if (tokens.length != 3) {
+            fail("Please try again!");
+            return;
+        }
+        BulkImporter.Kind kind;
+        try {
+            kind = BulkImporter.Kind.valueOf(tokens[1].toUpperCase());
+        } catch (IllegalArgumentException e) {
+            fail("Please choose one of patients, caregivers, vaccines or availabilities!");
+            return;
+        }
+        try {
+            new BulkImporter(kind, tokens[2], out).run();
+            if (kind == BulkImporter.Kind.VACCINES) {
+                VaccineInventory.getInstance().loadNew();
+            }
+            Waitlist.getInstance().allChanged();
+        } catch (IOException e) {
+            fail("Could not read " + tokens[2] + ", only files in the import directory can be imported.");
+        } catch (SQLException e) {
+            fail("Import stopped, run the same command again to resume.");
+            e.printStackTrace();
+        } finally {
+            ScheduleCache.getInstance().invalidateAll();
+            CaregiverAssignment.getInstance().invalidateAll();
+            AvailabilityIndex.getInstance().invalidateAll();
+        }
+    }
+
+    private void logout(String[] tokens) {
         if(tokens.length != 1){
-            System.out.println("Please try again!");
+            fail("Please try again!");
             return;
         }
         if(currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first.");
+            fail("Please login first.");
             return;
         } else if(currentPatient != null || currentCaregiver != null){
             currentPatient = null;
             currentCaregiver = null;
-            System.out.println("Successfully logged out!");
+            out.println("Successfully logged out!");
             return;
         }
-        System.out.println("Please try again!");
+        fail("Please try again!");
         return;
     }
 }
@@ -0,0 +1,341 @@
+package scheduler.bulk;
+
+import scheduler.db.ConnectionManager;
+import scheduler.journal.EventJournal;
+import scheduler.journal.JournalEvent;
+import scheduler.service.UsernameIndex;
+import scheduler.util.HashingService;
+import scheduler.util.Util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Streams a CSV file into one of the scheduler tables using batched inserts.
+ *
+ * The file is read in chunks of batchSize rows and every chunk is written in its own transaction, after
+ * which the number of consumed lines is saved to a checkpoint file next to the input. Running the same
+ * import again resumes after the last committed chunk. Salts and hashes for accounts are computed on the
+ * shared HashingService pool while rows that already exist in the database are skipped by the insert itself.
+ *
+ * Expected columns (a header line and lines starting with '#' are ignored):
+ *   patients, caregivers: username,password
+ *   vaccines:             name,doses
+ *   availabilities:       date,username
+ * Accounts with a weak password, negative doses and invalid dates are skipped like malformed lines, and
+ * rows that already exist or availabilities of caregivers who do not exist are skipped by the insert.
+ *
+ * Only files inside ImportDir (the working directory by default) can be imported, since the file name comes
+ * from the session.
+ */
+public class BulkImporter {
+
+    public enum Kind {
+        PATIENTS("username,password"),
+        CAREGIVERS("username,password"),
+        VACCINES("name,doses"),
+        AVAILABILITIES("date,username");
+
+        private final String header;
+
+        Kind(String header) {
+            this.header = header;
+        }
+    }
+
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final Kind kind;
+    private final Path file;
+    private final Path checkpoint;
+    private final int batchSize;
+    private final PrintStream progress;
+
+    private long imported = 0;
+    private long skipped = 0;
+
+    public BulkImporter(Kind kind, String file, PrintStream progress) throws IOException {
+        this(kind, file, DEFAULT_BATCH_SIZE, progress);
+    }
+
+    /**
+     * @throws IOException if the file does not exist or is outside ImportDir
+     */
+    public BulkImporter(Kind kind, String file, int batchSize, PrintStream progress) throws IOException {
+        this.kind = kind;
+        this.file = resolve(file);
+        this.checkpoint = Paths.get(this.file + ".checkpoint");
+        this.batchSize = batchSize;
+        this.progress = progress;
+    }
+
+    private static Path resolve(String file) throws IOException {
+        String setting = System.getProperty("ImportDir", System.getenv("ImportDir"));
+        Path dir = Paths.get(setting == null || setting.isEmpty() ? "." : setting).toRealPath();
+        Path path = dir.resolve(file).toRealPath();
+        if (!path.startsWith(dir) || !Files.isRegularFile(path)) {
+            throw new IOException(file + " is not a file in the import directory");
+        }
+        return path;
+    }
+
+    /**
+     * Runs the import from the last checkpoint to the end of the file.
+     */
+    public void run() throws IOException, SQLException {
+        long done = readCheckpoint();
+        long lineNumber = 0;
+        long start = System.nanoTime();
+        if (done > 0) {
+            progress.println("Resuming " + file + " after line " + done);
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            List<String[]> chunk = new ArrayList<>(batchSize);
+            Set<String> seen = new HashSet<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (lineNumber <= done) {
+                    continue;
+                }
+                String[] row = parse(line, lineNumber);
+                if (row != null) {
+                    // a key repeated within a chunk is only hashed once; across chunks the insert skips it
+                    if (!seen.add(kind == Kind.AVAILABILITIES ? row[0] + "," + row[1] : row[0])) {
+                        skipped++;
+                    } else {
+                        chunk.add(row);
+                    }
+                }
+                if (chunk.size() == batchSize) {
+                    writeChunk(chunk);
+                    writeCheckpoint(lineNumber);
+                    report(start, lineNumber);
+                    chunk.clear();
+                    seen.clear();
+                }
+            }
+            writeChunk(chunk);
+            writeCheckpoint(lineNumber);
+            report(start, lineNumber);
+        }
+        Files.deleteIfExists(checkpoint);
+        progress.println("Import finished: " + imported + " imported, " + skipped + " skipped.");
+    }
+
+    public long getImported() {
+        return imported;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    // the line itself is never echoed, it may hold a password
+    private String[] parse(String line, long lineNumber) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#") || trimmed.equalsIgnoreCase(kind.header)) {
+            return null;
+        }
+        String[] row = trimmed.split(",", -1);
+        if (row.length != 2 || row[0].trim().isEmpty() || row[1].trim().isEmpty()) {
+            return skip(lineNumber, "malformed");
+        }
+        row[0] = row[0].trim();
+        row[1] = row[1].trim();
+        switch (kind) {
+            case PATIENTS:
+            case CAREGIVERS:
+                return Util.checkStrongPassword(row[1]) ? row : skip(lineNumber, "weak password");
+            case VACCINES:
+                try {
+                    return Integer.parseInt(row[1]) >= 0 ? row : skip(lineNumber, "negative doses");
+                } catch (NumberFormatException e) {
+                    return skip(lineNumber, "invalid doses");
+                }
+            default:
+                try {
+                    Date.valueOf(row[0]);
+                    return row;
+                } catch (IllegalArgumentException e) {
+                    return skip(lineNumber, "invalid date");
+                }
+        }
+    }
+
+    private String[] skip(long lineNumber, String reason) {
+        progress.println("Skipping line " + lineNumber + ": " + reason);
+        skipped++;
+        return null;
+    }
+
+    private void writeChunk(List<String[]> chunk) throws SQLException {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        List<byte[][]> credentials = null;
+        if (kind == Kind.PATIENTS || kind == Kind.CAREGIVERS) {
+            credentials = hashAll(chunk);
+        }
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try {
+            con.setAutoCommit(false);
+            List<String[]> inserted = new ArrayList<>(chunk.size());
+            try (PreparedStatement statement = con.prepareStatement(insertStatement())) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    bind(statement, chunk.get(i), credentials == null ? null : credentials.get(i));
+                    statement.addBatch();
+                }
+                int[] counts = statement.executeBatch();
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+                        inserted.add(chunk.get(i));
+                    }
+                }
+            }
+            con.commit();
+            journal(inserted);
+            if (kind == Kind.PATIENTS || kind == Kind.CAREGIVERS) {
+                UsernameIndex index = kind == Kind.PATIENTS ? UsernameIndex.patients() : UsernameIndex.caregivers();
+                for (String[] row : chunk) {
+                    index.added(row[0]);
+                }
+            }
+            imported += inserted.size();
+            skipped += chunk.size() - inserted.size();
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // new vaccines and availabilities are state changes like add_doses and upload_availability
+    private void journal(List<String[]> inserted) throws SQLException {
+        if (kind != Kind.VACCINES && kind != Kind.AVAILABILITIES) {
+            return;
+        }
+        EventJournal journal = EventJournal.getInstance();
+        for (String[] row : inserted) {
+            journal.append(kind == Kind.VACCINES
+                    ? JournalEvent.dosesAdded(row[0], parseInt(row[1]))
+                    : JournalEvent.availabilityUploaded(row[1], parseDate(row[0])));
+        }
+    }
+
+    private List<byte[][]> hashAll(List<String[]> chunk) throws SQLException {
+        List<String> passwords = new ArrayList<>(chunk.size());
+        for (String[] row : chunk) {
+            passwords.add(row[1]);
+        }
+        try {
+            return HashingService.getInstance().saltAndHashAll(passwords).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while hashing passwords");
+        } catch (ExecutionException e) {
+            throw new SQLException("Failed to hash passwords", e.getCause());
+        }
+    }
+
+    private String insertStatement() {
+        switch (kind) {
+            case PATIENTS:
+                return "INSERT INTO Patients SELECT ?, ?, ? " +
+                        "WHERE NOT EXISTS (SELECT 1 FROM Patients WHERE Username = ?)";
+            case CAREGIVERS:
+                return "INSERT INTO Caregivers SELECT ?, ?, ? " +
+                        "WHERE NOT EXISTS (SELECT 1 FROM Caregivers WHERE Username = ?)";
+            case VACCINES:
+                return "INSERT INTO Vaccines SELECT ?, ? " +
+                        "WHERE NOT EXISTS (SELECT 1 FROM Vaccines WHERE Name = ?)";
+            default:
+                // a row naming an unknown caregiver would break the foreign key and fail the chunk on every resume
+                return "INSERT INTO Availabilities SELECT ?, ? " +
+                        "WHERE NOT EXISTS (SELECT 1 FROM Availabilities WHERE Time = ? AND Username = ?) " +
+                        "AND EXISTS (SELECT 1 FROM Caregivers WHERE Username = ?)";
+        }
+    }
+
+    private void bind(PreparedStatement statement, String[] row, byte[][] credential) throws SQLException {
+        switch (kind) {
+            case PATIENTS:
+            case CAREGIVERS:
+                statement.setString(1, row[0]);
+                statement.setBytes(2, credential[0]);
+                statement.setBytes(3, credential[1]);
+                statement.setString(4, row[0]);
+                break;
+            case VACCINES:
+                statement.setString(1, row[0]);
+                statement.setInt(2, parseInt(row[1]));
+                statement.setString(3, row[0]);
+                break;
+            default:
+                Date d = parseDate(row[0]);
+                statement.setDate(1, d);
+                statement.setString(2, row[1]);
+                statement.setDate(3, d);
+                statement.setString(4, row[1]);
+                statement.setString(5, row[1]);
+        }
+    }
+
+    private static int parseInt(String value) throws SQLException {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new SQLException("Invalid number: " + value);
+        }
+    }
+
+    private static Date parseDate(String value) throws SQLException {
+        try {
+            return Date.valueOf(value);
+        } catch (IllegalArgumentException e) {
+            throw new SQLException("Invalid date: " + value);
+        }
+    }
+
+    private void report(long start, long lineNumber) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        progress.printf("%s: line %d, %d imported, %d skipped, %.0f rows/s%n", file.getFileName(),
+                lineNumber, imported, skipped, seconds > 0 ? (imported + skipped) / seconds : 0.0);
+    }
+
+    private long readCheckpoint() throws IOException {
+        if (!Files.exists(checkpoint)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void writeCheckpoint(long lineNumber) throws IOException {
+        Files.write(checkpoint, Long.toString(lineNumber).getBytes(StandardCharsets.UTF_8));
+    }
+}
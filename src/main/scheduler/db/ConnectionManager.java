@@ -1,30 +1,25 @@
 package scheduler.db;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 
 public class ConnectionManager {
 
-    private final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
-    private final String connectionUrl = "jdbc:sqlserver://" + System.getenv("Server") +
-            ".database.windows.net:1433;database=" + System.getenv("DBName");
-    private final String userName = System.getenv("UserID");
-    private final String userPass = System.getenv("Password");
+    private static final DatabaseProfile profile = DatabaseProfile.fromSetting(setting("DBProfile"));
+    private static final int fetchSize = intSetting("FetchSize", 100);
+
+    // one pool per process, shared by every ConnectionManager instance
+    private static volatile ConnectionPool pool = null;
 
     private Connection con = null;
 
     public ConnectionManager() {
-        try {
-            Class.forName(driverName);
-        } catch (ClassNotFoundException e) {
-            System.out.println(e.toString());
-        }
+        getPool();
     }
 
     public Connection createConnection() {
         try {
-            con = DriverManager.getConnection(connectionUrl, userName, userPass);
+            con = getPool().acquire();
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -32,10 +27,93 @@ public class ConnectionManager {
     }
 
     public void closeConnection() {
+        if (this.con != null) {
+            getPool().release(this.con);
+            this.con = null;
+        }
+    }
+
+    public static DatabaseProfile getProfile() {
+        return profile;
+    }
+
+    public static Dialect getDialect() {
+        return profile.getDialect();
+    }
+
+    /**
+     * The number of rows to fetch per round trip for queries that stream many rows.
+     */
+    public static int getFetchSize() {
+        return fetchSize;
+    }
+
+    public static ConnectionPool.Stats getPoolStats() {
+        return getPool().getStats();
+    }
+
+    private static ConnectionPool getPool() {
+        ConnectionPool p = pool;
+        if (p == null) {
+            synchronized (ConnectionManager.class) {
+                p = pool;
+                if (p == null) {
+                    try {
+                        Class.forName(profile.getDriverName());
+                    } catch (ClassNotFoundException e) {
+                        System.out.println(e.toString());
+                    }
+                    p = new ConnectionPool.Builder(profile.url(), profile.user(), profile.password())
+                            .minSize(intSetting("PoolMinSize", 1))
+                            .maxSize(intSetting("PoolMaxSize", 10))
+                            .acquireTimeoutMillis(intSetting("PoolAcquireTimeoutMs", 30_000))
+                            .idleTimeoutMillis(intSetting("PoolIdleTimeoutMs", 600_000))
+                            .leakThresholdMillis(intSetting("PoolLeakThresholdMs", 60_000))
+                            .leakTracing("true".equalsIgnoreCase(setting("PoolLeakTracing")))
+                            .statementCacheSize(intSetting("StatementCacheSize", 32))
+                            .build();
+                    String migrate = setting("Migrate");
+                    if (migrate == null || !migrate.equalsIgnoreCase("false")) {
+                        migrate(p);
+                    }
+                    pool = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    private static void migrate(ConnectionPool p) {
+        Connection con = null;
         try {
-            this.con.close();
+            con = p.acquire();
+            new MigrationRunner(con, profile.getDialect()).migrate(MigrationRunner.latestVersion());
         } catch (SQLException e) {
+            System.out.println("Error occurred when migrating the schema");
             e.printStackTrace();
+        } finally {
+            if (con != null) {
+                p.release(con);
+            }
+        }
+    }
+
+    // settings come from system properties first so that tools can override the environment
+    static String setting(String name) {
+        String value = System.getProperty(name);
+        return value != null ? value : System.getenv(name);
+    }
+
+    private static int intSetting(String name, int defaultValue) {
+        String value = setting(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid value for " + name + ": " + value);
+            return defaultValue;
         }
     }
 }
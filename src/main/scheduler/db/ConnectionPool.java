@@ -0,0 +1,423 @@
+package scheduler.db;
+
+import scheduler.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of JDBC connections shared by every ConnectionManager.
+ *
+ * minSize connections are opened up front and kept open. Connections are validated when borrowed, closed
+ * after sitting idle for longer than the idle timeout, and any connection held longer than the leak
+ * threshold is reported with the thread that borrowed it. With leak tracing on, the report also carries
+ * the stack trace of the borrow, which costs a stack walk on every acquire.
+ */
+public class ConnectionPool {
+
+    private final String connectionUrl;
+    private final String userName;
+    private final String userPass;
+
+    private final int minSize;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final long idleTimeoutMillis;
+    private final long leakThresholdMillis;
+    private final boolean leakTracing;
+    private final int statementCacheSize;
+
+    // idle connections, most recently returned first so the oldest ones age out
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Map<Connection, PooledConnection> leased = new ConcurrentHashMap<>();
+    private final Semaphore permits;
+    private final ScheduledExecutorService housekeeper;
+
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final AtomicInteger opened = new AtomicInteger();
+    private final AtomicLong acquireCount = new AtomicLong();
+    private final AtomicLong acquireNanos = new AtomicLong();
+    private final AtomicLong maxAcquireNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+    private final Metrics.Timer acquireTimer = Metrics.timer("pool.acquire");
+
+    private ConnectionPool(Builder builder) {
+        this.connectionUrl = builder.connectionUrl;
+        this.userName = builder.userName;
+        this.userPass = builder.userPass;
+        this.minSize = builder.minSize;
+        this.maxSize = builder.maxSize;
+        this.acquireTimeoutMillis = builder.acquireTimeoutMillis;
+        this.idleTimeoutMillis = builder.idleTimeoutMillis;
+        this.leakThresholdMillis = builder.leakThresholdMillis;
+        this.leakTracing = builder.leakTracing;
+        this.statementCacheSize = builder.statementCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, Math.min(idleTimeoutMillis,
+                leakThresholdMillis > 0 ? leakThresholdMillis : Long.MAX_VALUE) / 2);
+        housekeeper.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+
+        Metrics.gauge("pool.active", leased::size);
+        Metrics.gauge("pool.idle", idle::size);
+        Metrics.gauge("pool.waiters", waiters::get);
+        Metrics.gauge("pool.open", opened::get);
+
+        fillToMinSize();
+    }
+
+    /**
+     * Borrows a connection, waiting up to the acquire timeout for one to become available.
+     */
+    public Connection acquire() throws SQLException {
+        long start = System.nanoTime();
+        waiters.incrementAndGet();
+        boolean permitted;
+        try {
+            permitted = permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection");
+        } finally {
+            waiters.decrementAndGet();
+        }
+        if (!permitted) {
+            timeouts.incrementAndGet();
+            acquireTimer.recordError();
+            throw new SQLException("Timed out after " + acquireTimeoutMillis + " ms waiting for a connection");
+        }
+
+        try {
+            PooledConnection pooled = takeValidIdle();
+            if (pooled == null) {
+                pooled = open();
+            }
+            pooled.leasedAt = System.currentTimeMillis();
+            pooled.borrowerThread = Thread.currentThread().getName();
+            pooled.borrower = leakTracing ? new Throwable("Connection borrowed here") : null;
+            leased.put(pooled.connection, pooled);
+
+            long elapsed = System.nanoTime() - start;
+            acquireCount.incrementAndGet();
+            acquireNanos.addAndGet(elapsed);
+            maxAcquireNanos.accumulateAndGet(elapsed, Math::max);
+            acquireTimer.record(elapsed);
+            return pooled.connection;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a borrowed connection to the pool. Connections left in a transaction are rolled back first,
+     * and statements left open are returned to the connection's statement cache.
+     */
+    public void release(Connection con) {
+        PooledConnection pooled = leased.remove(con);
+        if (pooled == null) {
+            return;
+        }
+        try {
+            if (con.isClosed()) {
+                discard(pooled);
+                return;
+            }
+            InstrumentedConnection.reclaimStatements(con);
+            if (!con.getAutoCommit()) {
+                con.rollback();
+                con.setAutoCommit(true);
+            }
+            pooled.idleSince = System.currentTimeMillis();
+            pooled.borrowerThread = null;
+            pooled.borrower = null;
+            idle.offerFirst(pooled);
+        } catch (SQLException e) {
+            discard(pooled);
+        } finally {
+            permits.release();
+        }
+    }
+
+    public Stats getStats() {
+        long count = acquireCount.get();
+        return new Stats(leased.size(), idle.size(), waiters.get(), opened.get(), count,
+                count == 0 ? 0 : acquireNanos.get() / count, maxAcquireNanos.get(), timeouts.get(), leaks.get());
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void shutdown() {
+        housekeeper.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            discard(pooled);
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        PooledConnection pooled = new PooledConnection(InstrumentedConnection.wrap(
+                DriverManager.getConnection(connectionUrl, userName, userPass), statementCacheSize));
+        opened.incrementAndGet();
+        return pooled;
+    }
+
+    // opens idle connections until minSize are open, so the first commands do not pay for connecting
+    private void fillToMinSize() {
+        while (opened.get() < minSize) {
+            try {
+                PooledConnection pooled = open();
+                pooled.idleSince = System.currentTimeMillis();
+                idle.offerLast(pooled);
+            } catch (SQLException e) {
+                // the database may not be up yet; connections are opened on demand and retried by the housekeeper
+                System.err.println("Could not open idle connections: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private PooledConnection takeValidIdle() {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            try {
+                if (pooled.connection.isValid(2)) {
+                    return pooled;
+                }
+            } catch (SQLException e) {
+                // fall through and discard
+            }
+            discard(pooled);
+        }
+        return null;
+    }
+
+    private void discard(PooledConnection pooled) {
+        opened.decrementAndGet();
+        try {
+            pooled.connection.close();
+        } catch (SQLException e) {
+            // the connection is being thrown away anyway
+        }
+    }
+
+    private void housekeep() {
+        long now = System.currentTimeMillis();
+
+        // evict idle connections beyond the minimum, oldest first
+        while (idle.size() > minSize) {
+            PooledConnection oldest = idle.peekLast();
+            if (oldest == null || now - oldest.idleSince < idleTimeoutMillis) {
+                break;
+            }
+            if (idle.removeLastOccurrence(oldest)) {
+                discard(oldest);
+            }
+        }
+
+        // replace connections that were closed or evicted below the minimum
+        fillToMinSize();
+
+        // report connections that have been held for too long
+        if (leakThresholdMillis <= 0) {
+            return;
+        }
+        for (PooledConnection pooled : leased.values()) {
+            String thread = pooled.borrowerThread;
+            if (thread != null && now - pooled.leasedAt > leakThresholdMillis && !pooled.reported) {
+                pooled.reported = true;
+                leaks.incrementAndGet();
+                System.err.println("Possible connection leak: held for " + (now - pooled.leasedAt)
+                        + " ms by thread " + thread);
+                Throwable borrower = pooled.borrower;
+                if (borrower != null) {
+                    borrower.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static class PooledConnection {
+        private final Connection connection;
+        private volatile long leasedAt;
+        private volatile long idleSince;
+        private volatile String borrowerThread;
+        private volatile Throwable borrower;
+        private volatile boolean reported;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    /**
+     * A point-in-time snapshot of the pool counters. Latencies are in nanoseconds.
+     */
+    public static class Stats {
+        private final int active;
+        private final int idle;
+        private final int waiters;
+        private final int open;
+        private final long acquireCount;
+        private final long avgAcquireNanos;
+        private final long maxAcquireNanos;
+        private final long timeouts;
+        private final long leaks;
+
+        private Stats(int active, int idle, int waiters, int open, long acquireCount,
+                      long avgAcquireNanos, long maxAcquireNanos, long timeouts, long leaks) {
+            this.active = active;
+            this.idle = idle;
+            this.waiters = waiters;
+            this.open = open;
+            this.acquireCount = acquireCount;
+            this.avgAcquireNanos = avgAcquireNanos;
+            this.maxAcquireNanos = maxAcquireNanos;
+            this.timeouts = timeouts;
+            this.leaks = leaks;
+        }
+
+        public int getActive() {
+            return active;
+        }
+
+        public int getIdle() {
+            return idle;
+        }
+
+        public int getWaiters() {
+            return waiters;
+        }
+
+        public int getOpen() {
+            return open;
+        }
+
+        public long getAcquireCount() {
+            return acquireCount;
+        }
+
+        public long getAvgAcquireNanos() {
+            return avgAcquireNanos;
+        }
+
+        public long getMaxAcquireNanos() {
+            return maxAcquireNanos;
+        }
+
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        public long getLeaks() {
+            return leaks;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{" +
+                    "active=" + active +
+                    ", idle=" + idle +
+                    ", waiters=" + waiters +
+                    ", open=" + open +
+                    ", acquireCount=" + acquireCount +
+                    ", avgAcquireMicros=" + avgAcquireNanos / 1000 +
+                    ", maxAcquireMicros=" + maxAcquireNanos / 1000 +
+                    ", timeouts=" + timeouts +
+                    ", leaks=" + leaks +
+                    '}';
+        }
+    }
+
+    public static class Builder {
+        private final String connectionUrl;
+        private final String userName;
+        private final String userPass;
+        private int minSize = 1;
+        private int maxSize = 10;
+        private long acquireTimeoutMillis = 30_000;
+        private long idleTimeoutMillis = 600_000;
+        private long leakThresholdMillis = 60_000;
+        private boolean leakTracing = false;
+        private int statementCacheSize = 32;
+
+        public Builder(String connectionUrl, String userName, String userPass) {
+            this.connectionUrl = connectionUrl;
+            this.userName = userName;
+            this.userPass = userPass;
+        }
+
+        public Builder minSize(int minSize) {
+            this.minSize = minSize;
+            return this;
+        }
+
+        public Builder maxSize(int maxSize) {
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        public Builder acquireTimeoutMillis(long acquireTimeoutMillis) {
+            this.acquireTimeoutMillis = acquireTimeoutMillis;
+            return this;
+        }
+
+        public Builder idleTimeoutMillis(long idleTimeoutMillis) {
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * How long a connection may be held before it is reported as a possible leak; 0 disables the reports.
+         */
+        public Builder leakThresholdMillis(long leakThresholdMillis) {
+            this.leakThresholdMillis = leakThresholdMillis;
+            return this;
+        }
+
+        /**
+         * Whether to record the stack trace of every borrow, so that leak reports show where the connection
+         * was taken.
+         */
+        public Builder leakTracing(boolean leakTracing) {
+            this.leakTracing = leakTracing;
+            return this;
+        }
+
+        /**
+         * The number of prepared statements cached per connection; 0 disables the cache.
+         */
+        public Builder statementCacheSize(int statementCacheSize) {
+            this.statementCacheSize = statementCacheSize;
+            return this;
+        }
+
+        public ConnectionPool build() {
+            if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+                throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+            }
+            if (statementCacheSize < 0) {
+                throw new IllegalArgumentException("Invalid statement cache size: " + statementCacheSize);
+            }
+            return new ConnectionPool(this);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package scheduler.db;
+
+/**
+ * The database backends ConnectionManager can connect to, selected with the DBProfile setting.
+ *
+ * AZURE is the hosted SQL Server database configured through the Server, DBName, UserID and Password
+ * settings. EMBEDDED runs an in-process H2 database (in memory unless DBUrl says otherwise), so the
+ * application can be exercised without a network hop. Both are migrated to the latest schema on startup.
+ */
+public enum DatabaseProfile {
+    AZURE("com.microsoft.sqlserver.jdbc.SQLServerDriver", Dialect.SQLSERVER) {
+        @Override
+        String url() {
+            return "jdbc:sqlserver://" + ConnectionManager.setting("Server") +
+                    ".database.windows.net:1433;database=" + ConnectionManager.setting("DBName");
+        }
+
+        @Override
+        String user() {
+            return ConnectionManager.setting("UserID");
+        }
+
+        @Override
+        String password() {
+            return ConnectionManager.setting("Password");
+        }
+    },
+    EMBEDDED("org.h2.Driver", Dialect.H2) {
+        @Override
+        String url() {
+            String url = ConnectionManager.setting("DBUrl");
+            return url == null || url.isEmpty() ? "jdbc:h2:mem:scheduler;DB_CLOSE_DELAY=-1" : url;
+        }
+
+        @Override
+        String user() {
+            return "sa";
+        }
+
+        @Override
+        String password() {
+            return "";
+        }
+    };
+
+    private final String driverName;
+    private final Dialect dialect;
+
+    DatabaseProfile(String driverName, Dialect dialect) {
+        this.driverName = driverName;
+        this.dialect = dialect;
+    }
+
+    abstract String url();
+
+    abstract String user();
+
+    abstract String password();
+
+    String getDriverName() {
+        return driverName;
+    }
+
+    public Dialect getDialect() {
+        return dialect;
+    }
+
+    public static DatabaseProfile fromSetting(String value) {
+        if (value == null || value.isEmpty()) {
+            return AZURE;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown DBProfile " + value + ", using " + AZURE);
+            return AZURE;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package scheduler.db;
+
+/**
+ * The SQL differences between the database servers the scheduler can run against.
+ */
+public enum Dialect {
+    SQLSERVER {
+        @Override
+        public String nameKey(String name) {
+            // the default collation compares names case-insensitively
+            return name.toLowerCase();
+        }
+
+        @Override
+        public String claimAvailability() {
+            // READPAST lets concurrent bookings skip rows another transaction is already claiming
+            return "DELETE TOP (1) FROM Availabilities WITH (ROWLOCK, READPAST) " +
+                    "OUTPUT deleted.Username WHERE Time = ?";
+        }
+    },
+    H2 {
+        @Override
+        public String nameKey(String name) {
+            return name;
+        }
+
+        @Override
+        public String claimAvailability() {
+            return "SELECT Username FROM OLD TABLE " +
+                    "(DELETE FROM Availabilities WHERE Time = ? FETCH FIRST 1 ROW ONLY)";
+        }
+    };
+
+    /**
+     * The form of a name under which the database considers two names equal, for keying in-memory maps the
+     * way the primary keys are compared.
+     */
+    public abstract String nameKey(String name);
+
+    /**
+     * A query that deletes one Availabilities row for the date parameter and returns its Username,
+     * so that a caregiver slot is claimed atomically in a single statement.
+     */
+    public abstract String claimAvailability();
+}
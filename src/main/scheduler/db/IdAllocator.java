@@ -0,0 +1,125 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out unique integer IDs from blocks reserved in the IdBlocks table (hi/lo allocation).
+ *
+ * Each call to reserve a block advances the counter row for the sequence by the block size inside a
+ * transaction, so several application instances never receive overlapping blocks. IDs within a block
+ * are handed out from memory, so only one in every blockSize allocations touches the database.
+ */
+public class IdAllocator {
+
+    private final String sequence;
+    private final String seedQuery;
+    private final int blockSize;
+
+    private volatile Block current = null;
+
+    // held while a new block is reserved; a lock rather than a monitor, since reserving one is database I/O
+    // that would pin the virtual threads of server sessions
+    private final Lock refill = new ReentrantLock();
+
+    /**
+     * @param sequence  the name of the counter row in IdBlocks
+     * @param seedQuery a query returning the largest ID already in use, used to create the counter row
+     * @param blockSize the number of IDs reserved per round trip
+     */
+    public IdAllocator(String sequence, String seedQuery, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive!");
+        }
+        this.sequence = sequence;
+        this.seedQuery = seedQuery;
+        this.blockSize = blockSize;
+    }
+
+    public int next() throws SQLException {
+        while (true) {
+            Block block = current;
+            if (block != null) {
+                int id = block.next.getAndIncrement();
+                if (id < block.end) {
+                    return id;
+                }
+            }
+            refill.lock();
+            try {
+                if (current == block) {
+                    current = reserveBlock();
+                }
+            } finally {
+                refill.unlock();
+            }
+        }
+    }
+
+    private Block reserveBlock() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        String advance = "UPDATE IdBlocks SET NextValue = NextValue + ? WHERE Name = ?";
+        String read = "SELECT NextValue FROM IdBlocks WHERE Name = ?";
+        try {
+            con.setAutoCommit(false);
+            try (PreparedStatement stAdvance = con.prepareStatement(advance)) {
+                stAdvance.setInt(1, blockSize);
+                stAdvance.setString(2, sequence);
+                if (stAdvance.executeUpdate() == 0) {
+                    con.commit();
+                    createCounter(con);
+                    stAdvance.executeUpdate();
+                }
+            }
+            int end;
+            try (PreparedStatement stRead = con.prepareStatement(read)) {
+                stRead.setString(1, sequence);
+                ResultSet rs = stRead.executeQuery();
+                rs.next();
+                end = rs.getInt(1);
+            }
+            con.commit();
+            return new Block(end - blockSize, end);
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // starts the counter after the largest existing ID; another instance may win the race to insert it
+    private void createCounter(Connection con) throws SQLException {
+        String insert = "INSERT INTO IdBlocks VALUES (?, ?)";
+        try (PreparedStatement stSeed = con.prepareStatement(seedQuery);
+             PreparedStatement stInsert = con.prepareStatement(insert)) {
+            ResultSet rs = stSeed.executeQuery();
+            int max = rs.next() ? rs.getInt(1) : 0;
+            stInsert.setString(1, sequence);
+            stInsert.setInt(2, max + 1);
+            stInsert.executeUpdate();
+            con.commit();
+        } catch (SQLException e) {
+            con.rollback();
+        }
+    }
+
+    private static class Block {
+        private final AtomicInteger next;
+        private final int end;
+
+        private Block(int start, int end) {
+            this.next = new AtomicInteger(start);
+            this.end = end;
+        }
+    }
+}
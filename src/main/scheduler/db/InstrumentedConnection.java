@@ -0,0 +1,368 @@
+package scheduler.db;
+
+import scheduler.metrics.Metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Wraps pooled connections so that every execution of a prepared statement is timed in Metrics, without
+ * changing any of the call sites. A statement's timer is named from its SQL text as
+ * "sql.&lt;verb&gt;.&lt;table&gt;.&lt;hash of the text&gt;", sql.select.Reservations.1f3a9c0d say, short enough
+ * for a metric name and the same from run to run.
+ *
+ * Each connection also keeps up to cacheSize prepared statements keyed by their SQL text, least recently used
+ * first out. prepareStatement(sql) hands out a cached statement when one is free, and closing the returned
+ * statement closes its result set, clears its parameters, puts back any of fetch size, max rows, timeouts and
+ * the like the borrower changed, and returns it to the cache instead of closing it on the server. When the same
+ * SQL is already in use on the connection (a nested lookup, say) an ordinary statement is prepared instead.
+ * Statements still open when the connection goes back to the pool are reclaimed then.
+ *
+ * Statements hand out the wrapped connection from getConnection, and their result sets hand out the
+ * wrapped statement from getStatement, so callers never get hold of the driver's objects.
+ */
+class InstrumentedConnection implements InvocationHandler {
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    static {
+        Metrics.gauge("statements.hits", hits::get);
+        Metrics.gauge("statements.misses", misses::get);
+        Metrics.gauge("statements.evictions", evictions::get);
+    }
+
+    // statement methods whose effect outlives the borrower, see CachedStatement.reset
+    private static final Set<String> STATEMENT_SETTINGS = Set.of("setFetchSize", "setMaxRows", "setLargeMaxRows",
+            "setQueryTimeout", "setMaxFieldSize", "setFetchDirection", "setEscapeProcessing", "setCursorName",
+            "closeOnCompletion");
+
+    private static final Pattern TABLE = Pattern.compile("(?i)\\b(?:FROM|INTO|UPDATE)\\s+(\\w+)");
+    private static final Map<String, String> TIMER_NAMES = new ConcurrentHashMap<>();
+
+    private final Connection connection;
+    private final int cacheSize;
+    // a connection is only used by the thread that leased it, so the cache needs no locking
+    private final LinkedHashMap<String, CachedStatement> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final List<TimedStatement> uncached = new ArrayList<>();
+    private Connection proxy;
+
+    private InstrumentedConnection(Connection connection, int cacheSize) {
+        this.connection = connection;
+        this.cacheSize = cacheSize;
+    }
+
+    static Connection wrap(Connection connection, int cacheSize) {
+        InstrumentedConnection handler = new InstrumentedConnection(connection, cacheSize);
+        handler.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, handler);
+        return handler.proxy;
+    }
+
+    /**
+     * Returns every statement the last borrower left open to the cache. Called by the pool on release.
+     */
+    static void reclaimStatements(Connection con) {
+        if (Proxy.isProxyClass(con.getClass()) && Proxy.getInvocationHandler(con) instanceof InstrumentedConnection) {
+            ((InstrumentedConnection) Proxy.getInvocationHandler(con)).reclaim();
+        }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        // the pool keys leased connections by identity
+        if (name.equals("equals") && args != null && args.length == 1) {
+            return proxy == args[0];
+        }
+        if (name.equals("hashCode") && args == null) {
+            return System.identityHashCode(proxy);
+        }
+        if (name.equals("prepareStatement") && args != null && args[0] instanceof String) {
+            String sql = (String) args[0];
+            if (args.length == 1 && cacheSize > 0) {
+                return prepareCached(sql);
+            }
+            TimedStatement handle = new TimedStatement((PreparedStatement) call(connection, method, args),
+                    Metrics.timer(timerName(sql)), null);
+            uncached.add(handle);
+            return handle.proxy();
+        }
+        if (name.equals("close")) {
+            closeAll();
+        }
+        return call(connection, method, args);
+    }
+
+    private PreparedStatement prepareCached(String sql) throws SQLException {
+        CachedStatement cached = cache.get(sql);
+        if (cached != null && cached.lease == null) {
+            hits.incrementAndGet();
+            cached.lease = new TimedStatement(cached.statement, cached.timer, cached);
+            return cached.lease.proxy();
+        }
+        misses.incrementAndGet();
+        PreparedStatement statement = connection.prepareStatement(sql);
+        if (cached != null) {
+            // the cached one is busy, so this one is closed for real when the caller is done with it
+            TimedStatement handle = new TimedStatement(statement, cached.timer, null);
+            uncached.add(handle);
+            return handle.proxy();
+        }
+        try {
+            cached = new CachedStatement(statement, Metrics.timer(timerName(sql)));
+        } catch (SQLException e) {
+            closeQuietly(statement);
+            throw e;
+        }
+        cache.put(sql, cached);
+        evict();
+        cached.lease = new TimedStatement(statement, cached.timer, cached);
+        return cached.lease.proxy();
+    }
+
+    private void evict() {
+        Iterator<CachedStatement> it = cache.values().iterator();
+        while (cache.size() > cacheSize && it.hasNext()) {
+            CachedStatement eldest = it.next();
+            if (eldest.lease != null) {
+                continue;
+            }
+            it.remove();
+            evictions.incrementAndGet();
+            closeQuietly(eldest.statement);
+        }
+    }
+
+    private void reclaim() {
+        for (CachedStatement cached : new ArrayList<>(cache.values())) {
+            if (cached.lease != null) {
+                cached.lease.release();
+            }
+        }
+        for (TimedStatement handle : new ArrayList<>(uncached)) {
+            handle.release();
+        }
+        uncached.clear();
+        evict();
+    }
+
+    private void closeAll() {
+        reclaim();
+        for (CachedStatement cached : cache.values()) {
+            closeQuietly(cached.statement);
+        }
+        cache.clear();
+    }
+
+    static String timerName(String sql) {
+        return TIMER_NAMES.computeIfAbsent(sql, text -> {
+            String trimmed = text.trim();
+            int space = trimmed.indexOf(' ');
+            String verb = (space < 0 ? trimmed : trimmed.substring(0, space)).toLowerCase();
+            String table = "statement";
+            Matcher matcher = TABLE.matcher(trimmed);
+            while (matcher.find()) {
+                // FROM OLD TABLE (DELETE FROM ...) names the table further in
+                if (!matcher.group(1).equalsIgnoreCase("OLD")) {
+                    table = matcher.group(1);
+                    break;
+                }
+            }
+            return "sql." + verb + "." + table + "." + String.format("%08x", text.hashCode());
+        });
+    }
+
+    static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // nothing more can be done with it
+        }
+    }
+
+    private static class CachedStatement {
+        private final PreparedStatement statement;
+        private final Metrics.Timer timer;
+        private TimedStatement lease;
+        // the settings the statement was prepared with, put back when a borrower changed them
+        private final int fetchSize;
+        private final long maxRows;
+        private final int queryTimeout;
+        private final int maxFieldSize;
+        private final int fetchDirection;
+
+        private CachedStatement(PreparedStatement statement, Metrics.Timer timer) throws SQLException {
+            this.statement = statement;
+            this.timer = timer;
+            this.fetchSize = statement.getFetchSize();
+            this.maxRows = statement.getLargeMaxRows();
+            this.queryTimeout = statement.getQueryTimeout();
+            this.maxFieldSize = statement.getMaxFieldSize();
+            this.fetchDirection = statement.getFetchDirection();
+        }
+
+        private void reset(Set<String> changed) throws SQLException {
+            if (changed.contains("setFetchSize")) {
+                statement.setFetchSize(fetchSize);
+            }
+            if (changed.contains("setMaxRows") || changed.contains("setLargeMaxRows")) {
+                statement.setLargeMaxRows(maxRows);
+            }
+            if (changed.contains("setQueryTimeout")) {
+                statement.setQueryTimeout(queryTimeout);
+            }
+            if (changed.contains("setMaxFieldSize")) {
+                statement.setMaxFieldSize(maxFieldSize);
+            }
+            if (changed.contains("setFetchDirection")) {
+                statement.setFetchDirection(fetchDirection);
+            }
+            if (changed.contains("setEscapeProcessing")) {
+                statement.setEscapeProcessing(true);
+            }
+        }
+    }
+
+    /**
+     * One borrower's view of a statement. Once closed it rejects further use, even though a cached
+     * statement underneath lives on for the next borrower.
+     */
+    private class TimedStatement implements InvocationHandler {
+        private final PreparedStatement statement;
+        private final Metrics.Timer timer;
+        private final CachedStatement cached;
+        private final PreparedStatement proxy;
+        // the statement settings this borrower changed, by setter name
+        private final Set<String> changed = new HashSet<>();
+        private ResultSet lastResult;
+        private boolean closed;
+
+        private TimedStatement(PreparedStatement statement, Metrics.Timer timer, CachedStatement cached) {
+            this.statement = statement;
+            this.timer = timer;
+            this.cached = cached;
+            this.proxy = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, this);
+        }
+
+        PreparedStatement proxy() {
+            return proxy;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    close();
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("Statement is closed");
+            }
+            if (name.equals("getConnection")) {
+                return InstrumentedConnection.this.proxy;
+            }
+            if (STATEMENT_SETTINGS.contains(name)) {
+                changed.add(name);
+            }
+            if (!name.startsWith("execute")) {
+                return wrapResult(call(statement, method, args));
+            }
+            long start = System.nanoTime();
+            try {
+                Object result = call(statement, method, args);
+                if (result instanceof ResultSet) {
+                    lastResult = (ResultSet) result;
+                }
+                return wrapResult(result);
+            } catch (Throwable e) {
+                timer.recordError();
+                throw e;
+            } finally {
+                timer.recordSince(start);
+            }
+        }
+
+        // result sets answer getStatement with this handle rather than the driver's statement
+        private Object wrapResult(Object result) {
+            if (!(result instanceof ResultSet)) {
+                return result;
+            }
+            return new StatementResultSet((ResultSet) result, proxy);
+        }
+
+        private void close() throws SQLException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (cached == null) {
+                uncached.remove(this);
+                statement.close();
+                return;
+            }
+            try {
+                if (lastResult != null) {
+                    lastResult.close();
+                }
+                statement.clearParameters();
+                statement.clearBatch();
+                if (changed.contains("closeOnCompletion") || changed.contains("setCursorName")) {
+                    // neither can be undone, so the statement is not handed out again
+                    throw new SQLException("Statement settings cannot be reset");
+                }
+                cached.reset(changed);
+            } catch (SQLException e) {
+                // a statement that cannot be reset is not reused
+                cache.values().remove(cached);
+                closeQuietly(statement);
+            } finally {
+                cached.lease = null;
+            }
+        }
+
+        private void release() {
+            try {
+                close();
+            } catch (SQLException e) {
+                // the statement was thrown away
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package scheduler.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Brings the schema up to date by applying the numbered scripts in db/migration in order.
+ *
+ * Applied versions are recorded in the SchemaVersion table. Each script runs in its own transaction together
+ * with its SchemaVersion row, and a script named V&lt;n&gt;__&lt;name&gt;.&lt;dialect&gt;.sql replaces the
+ * plain one on that dialect. A database created by hand from create.sql has no SchemaVersion table;
+ * it is baselined at the newest version whose table already exists, so only the later scripts run.
+ *
+ * New scripts must be added to MIGRATIONS as well, since resources cannot be listed reliably from a jar.
+ */
+class MigrationRunner {
+
+    private static final String[] MIGRATIONS = {
+            "V1__baseline",
+            "V2__id_blocks",
+            "V3__keys_and_indexes",
+            "V4__waitlist",
+    };
+
+    // the table each early version created, used to recognize databases that predate SchemaVersion
+    private static final String[] BASELINE_TABLES = {"Caregivers", "IdBlocks"};
+
+    private static final String RESOURCE_DIR = "db/migration/";
+    private static final Path SOURCE_DIR = Paths.get("src", "main", "resources", "db", "migration");
+
+    private final Connection con;
+    private final Dialect dialect;
+
+    MigrationRunner(Connection con, Dialect dialect) {
+        this.con = con;
+        this.dialect = dialect;
+    }
+
+    static int latestVersion() {
+        return MIGRATIONS.length;
+    }
+
+    /**
+     * Applies every migration up to and including target and returns the resulting schema version.
+     */
+    int migrate(int target) throws SQLException {
+        int current = currentVersion();
+        for (int version = current + 1; version <= Math.min(target, MIGRATIONS.length); version++) {
+            apply(version, MIGRATIONS[version - 1]);
+            current = version;
+        }
+        return current;
+    }
+
+    int currentVersion() throws SQLException {
+        if (!tableExists("SchemaVersion")) {
+            createVersionTable();
+            int baseline = 0;
+            while (baseline < BASELINE_TABLES.length && tableExists(BASELINE_TABLES[baseline])) {
+                baseline++;
+            }
+            for (int version = 1; version <= baseline; version++) {
+                record(version, MIGRATIONS[version - 1] + " (baseline)");
+            }
+            return baseline;
+        }
+        try (PreparedStatement statement = con.prepareStatement("SELECT MAX(Version) FROM SchemaVersion")) {
+            ResultSet rs = statement.executeQuery();
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private void apply(int version, String name) throws SQLException {
+        String script;
+        try {
+            script = readScript(name);
+        } catch (IOException e) {
+            throw new SQLException("Could not read migration " + name, e);
+        }
+        boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        try (Statement statement = con.createStatement()) {
+            for (String sql : split(script)) {
+                statement.execute(sql);
+            }
+            record(version, name);
+            con.commit();
+            System.out.println("Applied schema migration " + name);
+        } catch (SQLException e) {
+            con.rollback();
+            throw new SQLException("Schema migration " + name + " failed: " + e.getMessage(), e);
+        } finally {
+            con.setAutoCommit(autoCommit);
+        }
+    }
+
+    private void createVersionTable() throws SQLException {
+        try (Statement statement = con.createStatement()) {
+            statement.execute("CREATE TABLE SchemaVersion (Version int, Name varchar(255), " +
+                    "AppliedAt datetime, PRIMARY KEY (Version))");
+        }
+    }
+
+    private void record(int version, String name) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement("INSERT INTO SchemaVersion VALUES (?, ?, ?)")) {
+            statement.setInt(1, version);
+            statement.setString(2, name);
+            statement.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+            statement.executeUpdate();
+        }
+    }
+
+    private boolean tableExists(String table) throws SQLException {
+        DatabaseMetaData metaData = con.getMetaData();
+        for (String name : new String[]{table, table.toUpperCase(), table.toLowerCase()}) {
+            try (ResultSet rs = metaData.getTables(null, null, name, new String[]{"TABLE"})) {
+                if (rs.next()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // statements are separated by ';' and lines starting with "--" are comments
+    private static List<String> split(String script) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : script.split("\n")) {
+            if (!line.trim().startsWith("--")) {
+                sb.append(line).append('\n');
+            }
+        }
+        List<String> statements = new ArrayList<>();
+        for (String sql : sb.toString().split(";")) {
+            if (!sql.trim().isEmpty()) {
+                statements.add(sql.trim());
+            }
+        }
+        return statements;
+    }
+
+    private String readScript(String name) throws IOException {
+        String specific = name + "." + dialect.name().toLowerCase() + ".sql";
+        String script = readResource(specific);
+        if (script == null) {
+            script = readResource(name + ".sql");
+        }
+        if (script == null) {
+            throw new IOException(name + ".sql not found");
+        }
+        return script;
+    }
+
+    private static String readResource(String fileName) throws IOException {
+        ClassLoader loader = MigrationRunner.class.getClassLoader();
+        for (String name : new String[]{RESOURCE_DIR + fileName, "resources/" + RESOURCE_DIR + fileName}) {
+            try (InputStream in = loader.getResourceAsStream(name)) {
+                if (in != null) {
+                    return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                }
+            }
+        }
+        Path file = SOURCE_DIR.resolve(fileName);
+        return Files.exists(file) ? new String(Files.readAllBytes(file), StandardCharsets.UTF_8) : null;
+    }
+}
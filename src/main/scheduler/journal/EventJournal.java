@@ -0,0 +1,428 @@
+package scheduler.journal;
+
+import scheduler.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only history of every state change: availability uploaded, doses added, appointments booked
+ * and cancelled. The database only holds the current state; the journal is what lets it be audited or
+ * replayed.
+ *
+ * Events are written into memory-mapped segment files of JournalSegmentBytes each (16 MB by default) in
+ * JournalDir ("journal" by default). A record is its length, a CRC32 of its bytes and the encoded event;
+ * a zero length marks the end of a segment. Appending copies the record into the mapping under a lock and
+ * returns, so the caller never waits for the disk. A background thread forces everything written since its
+ * last pass to disk every JournalFlushMillis (10 by default), one force for however many events arrived in
+ * between, and maps the next segment ahead of time so rolling over does not create a file on the caller's
+ * thread. A crash can lose the last flush interval of events but never leaves a corrupt record readable:
+ * reading stops at the first record whose checksum does not match.
+ *
+ * Only one process can write a journal directory: the journal takes a lock on journal.lock in it, and a
+ * second process that finds the lock held (the server and the CLI started from the same directory, say)
+ * runs with its journal off and says so, rather than writing over the first one's records.
+ *
+ * Events are appended after the database commit they describe, outside its transaction. Events about
+ * different rows are therefore in no particular order relative to each other's commits, and two transactions
+ * on the same slot that commit close together (a cancel and a booking of the freed slot, say) may be
+ * journaled in the opposite order. Replaying ends in the same state once both are in, but an audit that
+ * cuts between them reports a difference. Setting Journal=false turns the journal off.
+ */
+public class EventJournal {
+
+    private static final int MAGIC = 0x534A4E4C;
+    private static final int VERSION = 1;
+    private static final int SEGMENT_HEADER_BYTES = 8;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final String SEGMENT_PREFIX = "journal.";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String LOCK_FILE = "journal.lock";
+
+    private static final int DEFAULT_SEGMENT_BYTES = 16 << 20;
+    private static final long DEFAULT_FLUSH_MILLIS = 10;
+
+    private static volatile EventJournal instance = null;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final boolean enabled;
+    // held for the life of the process; released by the operating system when it exits
+    private FileLock lock;
+
+    // guarded by this
+    private Segment current;
+    private Segment spare;
+    private final List<Segment> retired = new ArrayList<>();
+    // the sequence of the spare the flusher is creating, which a synchronous roll must not take
+    private long spareInProgress = 0;
+    private final Object flushLock = new Object();
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong forces = new AtomicLong();
+    private final Metrics.Timer forceTimer = Metrics.timer("journal.force");
+
+    private EventJournal(Path dir, int segmentBytes, long flushMillis, boolean enabled) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        boolean opened = false;
+        if (enabled) {
+            try {
+                Files.createDirectories(dir);
+                if (lock(dir)) {
+                    current = openLast();
+                    opened = true;
+                } else {
+                    System.err.println("The event journal in " + dir + " is in use by another process, "
+                            + "events of this process are NOT journaled. Set JournalDir to give it its own.");
+                }
+            } catch (IOException e) {
+                System.err.println("Could not open the event journal in " + dir + ", events are not journaled");
+                e.printStackTrace();
+            }
+        }
+        this.enabled = opened;
+        Metrics.gauge("journal.appended", appended::get);
+        Metrics.gauge("journal.dropped", dropped::get);
+        Metrics.gauge("journal.forces", forces::get);
+        if (opened) {
+            ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "event-journal-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(this::flushQuietly, "event-journal-shutdown"));
+        }
+    }
+
+    public static EventJournal getInstance() {
+        EventJournal journal = instance;
+        if (journal == null) {
+            synchronized (EventJournal.class) {
+                journal = instance;
+                if (journal == null) {
+                    journal = new EventJournal(getDirectory(),
+                            (int) longSetting("JournalSegmentBytes", DEFAULT_SEGMENT_BYTES),
+                            longSetting("JournalFlushMillis", DEFAULT_FLUSH_MILLIS),
+                            !"false".equalsIgnoreCase(setting("Journal")));
+                    instance = journal;
+                }
+            }
+        }
+        return journal;
+    }
+
+    /**
+     * The directory the journal is written to, from the JournalDir setting.
+     */
+    public static Path getDirectory() {
+        String dir = setting("JournalDir");
+        return Paths.get(dir == null || dir.isEmpty() ? "journal" : dir);
+    }
+
+    /**
+     * Appends the event. It reaches the disk with the next flush; a journal that cannot be written drops it.
+     */
+    public void append(JournalEvent event) {
+        if (!enabled) {
+            return;
+        }
+        byte[] payload = event.encode();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        int checksum = (int) crc.getValue();
+        synchronized (this) {
+            try {
+                if (current.remaining() < RECORD_HEADER_BYTES + payload.length) {
+                    roll();
+                }
+                current.write(checksum, payload);
+                appended.incrementAndGet();
+            } catch (IOException | RuntimeException e) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Forces every event appended so far to disk and prepares the next segment once the current one is
+     * half full.
+     */
+    public void flush() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        synchronized (flushLock) {
+            flushLocked();
+        }
+    }
+
+    private void flushLocked() throws IOException {
+        List<Segment> done;
+        Segment segment;
+        int upTo;
+        boolean needSpare;
+        synchronized (this) {
+            done = new ArrayList<>(retired);
+            retired.clear();
+            segment = current;
+            upTo = segment.position;
+            needSpare = spare == null && segment.position > segmentBytes / 2;
+            if (needSpare) {
+                spareInProgress = segment.sequence + 1;
+            }
+        }
+        for (Segment old : done) {
+            old.force(old.position);
+            old.close();
+        }
+        if (upTo > segment.forced) {
+            long start = System.nanoTime();
+            segment.force(upTo);
+            forceTimer.recordSince(start);
+            forces.incrementAndGet();
+        }
+        if (needSpare) {
+            Segment next;
+            try {
+                next = Segment.create(dir, segment.sequence + 1, segmentBytes);
+            } finally {
+                synchronized (this) {
+                    spareInProgress = 0;
+                }
+            }
+            synchronized (this) {
+                if (spare == null && current == segment) {
+                    spare = next;
+                    next = null;
+                }
+            }
+            if (next != null) {
+                // the segment rolled over while this one was being created
+                next.close();
+                Files.deleteIfExists(next.path);
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not flush the event journal");
+            e.printStackTrace();
+        }
+    }
+
+    // called with the lock held
+    private void roll() throws IOException {
+        retired.add(current);
+        if (spare != null) {
+            current = spare;
+            spare = null;
+        } else {
+            long sequence = current.sequence + 1;
+            // skipping a sequence leaves a gap, which readers do not mind
+            current = Segment.create(dir, sequence == spareInProgress ? sequence + 1 : sequence, segmentBytes);
+        }
+    }
+
+    private boolean lock(Path dir) throws IOException {
+        FileChannel channel = FileChannel.open(dir.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by this process already
+            lock = null;
+        }
+        if (lock == null) {
+            channel.close();
+            return false;
+        }
+        return true;
+    }
+
+    // continues the newest segment after its last complete record, or starts the first one
+    private Segment openLast() throws IOException {
+        TreeMap<Long, Path> segments = segments(dir);
+        if (segments.isEmpty()) {
+            return Segment.create(dir, 1, segmentBytes);
+        }
+        Segment segment = Segment.open(segments.lastEntry().getValue(), segments.lastKey());
+        segment.position = scan(segment.buffer, null);
+        segment.forced = segment.position;
+        return segment;
+    }
+
+    /**
+     * Reads every event in the journal directory in the order it was written and returns how many there were.
+     */
+    public static long read(Path dir, Consumer<JournalEvent> consumer) throws IOException {
+        long count = 0;
+        for (Path path : segments(dir).values()) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                long[] events = new long[1];
+                scan(buffer, event -> {
+                    events[0]++;
+                    consumer.accept(event);
+                });
+                count += events[0];
+            }
+        }
+        return count;
+    }
+
+    // returns the position after the last valid record, passing each record's event to consumer if given
+    private static int scan(ByteBuffer buffer, Consumer<JournalEvent> consumer) throws IOException {
+        if (buffer.limit() < SEGMENT_HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a journal segment");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported journal version " + buffer.getInt(4));
+        }
+        int position = SEGMENT_HEADER_BYTES;
+        CRC32 crc = new CRC32();
+        while (position + RECORD_HEADER_BYTES <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_BYTES + length > buffer.limit()) {
+                break;
+            }
+            ByteBuffer payload = buffer.duplicate();
+            payload.limit(position + RECORD_HEADER_BYTES + length).position(position + RECORD_HEADER_BYTES);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                // a record torn by a crash; nothing after it was acknowledged by a flush
+                break;
+            }
+            if (consumer != null) {
+                consumer.accept(JournalEvent.decode(payload));
+            }
+            position += RECORD_HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    private static TreeMap<Long, Path> segments(Path dir) throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        if (!Files.isDirectory(dir)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        return segments;
+    }
+
+    private static String setting(String name) {
+        return System.getProperty(name, System.getenv(name));
+    }
+
+    private static long longSetting(String name, long defaultValue) {
+        String value = setting(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            long parsed = Long.parseLong(value);
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        System.out.println("Ignoring invalid value for " + name + ": " + value);
+        return defaultValue;
+    }
+
+    /**
+     * One mapped segment file. position is only changed with the journal's lock held; forced only by the
+     * flusher.
+     */
+    private static class Segment {
+        private final Path path;
+        private final long sequence;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int position;
+        private volatile int forced;
+
+        private Segment(Path path, long sequence, FileChannel channel, MappedByteBuffer buffer) {
+            this.path = path;
+            this.sequence = sequence;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        private static Segment create(Path dir, long sequence, int bytes) throws IOException {
+            Path path = dir.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(path, sequence, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes));
+            segment.buffer.putInt(0, MAGIC).putInt(4, VERSION);
+            segment.buffer.force(0, SEGMENT_HEADER_BYTES);
+            segment.position = SEGMENT_HEADER_BYTES;
+            segment.forced = SEGMENT_HEADER_BYTES;
+            return segment;
+        }
+
+        private static Segment open(Path path, long sequence) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(path, sequence, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        }
+
+        private int remaining() {
+            return buffer.capacity() - position;
+        }
+
+        private void write(int checksum, byte[] payload) {
+            // the payload goes in before its length, so a reader never sees a length without its bytes
+            buffer.putInt(position + 4, checksum);
+            buffer.put(position + RECORD_HEADER_BYTES, payload);
+            buffer.putInt(position, payload.length);
+            position += RECORD_HEADER_BYTES + payload.length;
+        }
+
+        private void force(int upTo) {
+            int from = forced;
+            if (upTo > from) {
+                buffer.force(from, upTo - from);
+                forced = upTo;
+            }
+        }
+
+        private void close() throws IOException {
+            channel.close();
+        }
+    }
+}
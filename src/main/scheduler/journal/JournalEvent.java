@@ -0,0 +1,157 @@
+package scheduler.journal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.time.LocalDate;
+
+/**
+ * One state-changing event in the journal.
+ *
+ * Every event has the same binary layout, so encoding needs no per-type code: the type code, the time in
+ * epoch milliseconds, the reservation ID, the date as an epoch day and the number of doses, followed by the
+ * patient, caregiver and vaccine names as length-prefixed UTF-8. Fields a type does not use are 0 or null.
+ */
+public class JournalEvent {
+
+    public enum Type {
+        AVAILABILITY_UPLOADED(1),
+        DOSES_ADDED(2),
+        RESERVED(3),
+        CANCELLED(4);
+
+        private final byte code;
+
+        Type(int code) {
+            this.code = (byte) code;
+        }
+
+        private static Type of(byte code) {
+            for (Type type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            throw new IllegalArgumentException("Unknown event type " + code);
+        }
+    }
+
+    // type, time, reservation ID, epoch day, doses and three string lengths
+    private static final int FIXED_BYTES = 1 + 8 + 4 + 4 + 4 + 3 * 2;
+
+    private final Type type;
+    private final long time;
+    private final int reserveID;
+    private final int day;
+    private final int doses;
+    private final String patient;
+    private final String caregiver;
+    private final String vaccine;
+
+    private JournalEvent(Type type, long time, int reserveID, int day, int doses,
+                         String patient, String caregiver, String vaccine) {
+        this.type = type;
+        this.time = time;
+        this.reserveID = reserveID;
+        this.day = day;
+        this.doses = doses;
+        this.patient = patient;
+        this.caregiver = caregiver;
+        this.vaccine = vaccine;
+    }
+
+    public static JournalEvent availabilityUploaded(String caregiver, Date date) {
+        return new JournalEvent(Type.AVAILABILITY_UPLOADED, System.currentTimeMillis(), 0, epochDay(date), 0,
+                null, caregiver, null);
+    }
+
+    public static JournalEvent dosesAdded(String vaccine, int doses) {
+        return new JournalEvent(Type.DOSES_ADDED, System.currentTimeMillis(), 0, 0, doses, null, null, vaccine);
+    }
+
+    public static JournalEvent reserved(int reserveID, String patient, String caregiver, String vaccine, Date date) {
+        return new JournalEvent(Type.RESERVED, System.currentTimeMillis(), reserveID, epochDay(date), 0,
+                patient, caregiver, vaccine);
+    }
+
+    public static JournalEvent cancelled(int reserveID, String patient, String caregiver, String vaccine, Date date) {
+        return new JournalEvent(Type.CANCELLED, System.currentTimeMillis(), reserveID, epochDay(date), 0,
+                patient, caregiver, vaccine);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public int getReserveID() {
+        return reserveID;
+    }
+
+    public int getDay() {
+        return day;
+    }
+
+    public Date getDate() {
+        return Date.valueOf(LocalDate.ofEpochDay(day));
+    }
+
+    public int getDoses() {
+        return doses;
+    }
+
+    public String getPatient() {
+        return patient;
+    }
+
+    public String getCaregiver() {
+        return caregiver;
+    }
+
+    public String getVaccine() {
+        return vaccine;
+    }
+
+    byte[] encode() {
+        byte[] p = bytes(patient);
+        byte[] c = bytes(caregiver);
+        byte[] v = bytes(vaccine);
+        ByteBuffer buffer = ByteBuffer.allocate(FIXED_BYTES + p.length + c.length + v.length);
+        buffer.put(type.code).putLong(time).putInt(reserveID).putInt(day).putInt(doses);
+        buffer.putShort((short) p.length).put(p);
+        buffer.putShort((short) c.length).put(c);
+        buffer.putShort((short) v.length).put(v);
+        return buffer.array();
+    }
+
+    static JournalEvent decode(ByteBuffer buffer) {
+        Type type = Type.of(buffer.get());
+        long time = buffer.getLong();
+        int reserveID = buffer.getInt();
+        int day = buffer.getInt();
+        int doses = buffer.getInt();
+        return new JournalEvent(type, time, reserveID, day, doses, string(buffer), string(buffer), string(buffer));
+    }
+
+    // names are at most 255 characters, so their UTF-8 always fits the unsigned short length
+    private static byte[] bytes(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int epochDay(Date date) {
+        return (int) date.toLocalDate().toEpochDay();
+    }
+}
@@ -0,0 +1,146 @@
+package scheduler.journal;
+
+import scheduler.db.ConnectionManager;
+import scheduler.util.CompactIntSet;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Replays the event journal into memory: the available caregivers per day, the doses left per vaccine and
+ * the appointments that were booked and not cancelled, the same state the in-memory indexes hold.
+ *
+ * With "audit" the replayed state is compared with the database, and every vaccine, availability count and
+ * reservation count that differs is printed. That only adds up if the journal was on since the database was
+ * created; Vaccines may also lag the journal by the inventory's flush interval of about a second, and
+ * commits on the same slot may be journaled out of order (see EventJournal), so audit a quiet database.
+ *
+ * Usage: java scheduler.journal.JournalReplay [audit] [journal-dir]
+ */
+public class JournalReplay {
+
+    private final Map<String, Integer> caregiverIds = new HashMap<>();
+    private final Map<Integer, CompactIntSet> available = new HashMap<>();
+    // keyed the way the database compares names, see Dialect.nameKey
+    private final Map<String, Long> doses = new TreeMap<>();
+    private final Map<Integer, JournalEvent> reservations = new HashMap<>();
+    private final Map<JournalEvent.Type, Long> counts = new EnumMap<>(JournalEvent.Type.class);
+
+    public static void main(String[] args) throws IOException, SQLException {
+        boolean audit = args.length > 0 && args[0].equals("audit");
+        int next = audit ? 1 : 0;
+        Path dir = args.length > next ? Paths.get(args[next]) : EventJournal.getDirectory();
+
+        JournalReplay replay = new JournalReplay();
+        long start = System.nanoTime();
+        long events = EventJournal.read(dir, replay::apply);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("replayed %d events from %s in %.2f s (%.0f events/s)%n",
+                events, dir, seconds, events / Math.max(seconds, 1e-9));
+        for (Map.Entry<JournalEvent.Type, Long> entry : replay.counts.entrySet()) {
+            System.out.printf("  %-22s %d%n", entry.getKey(), entry.getValue());
+        }
+        System.out.printf("available caregiver-days %d, appointments %d, vaccines %d%n",
+                replay.getAvailabilityCount(), replay.reservations.size(), replay.doses.size());
+
+        if (audit) {
+            int differences = replay.audit();
+            System.out.println(differences == 0 ? "journal and database agree" : differences + " differences");
+        }
+    }
+
+    public void apply(JournalEvent event) {
+        counts.merge(event.getType(), 1L, Long::sum);
+        switch (event.getType()) {
+            case AVAILABILITY_UPLOADED:
+                slots(event.getDay()).add(idOf(event.getCaregiver()));
+                break;
+            case DOSES_ADDED:
+                doses.merge(key(event.getVaccine()), (long) event.getDoses(), Long::sum);
+                break;
+            case RESERVED:
+                slots(event.getDay()).remove(idOf(event.getCaregiver()));
+                doses.merge(key(event.getVaccine()), -1L, Long::sum);
+                reservations.put(event.getReserveID(), event);
+                break;
+            case CANCELLED:
+                slots(event.getDay()).add(idOf(event.getCaregiver()));
+                doses.merge(key(event.getVaccine()), 1L, Long::sum);
+                reservations.remove(event.getReserveID());
+                break;
+        }
+    }
+
+    public long getAvailabilityCount() {
+        long count = 0;
+        for (CompactIntSet set : available.values()) {
+            count += set.size();
+        }
+        return count;
+    }
+
+    private int audit() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try (PreparedStatement countAvailable = con.prepareStatement("SELECT COUNT(*) FROM Availabilities");
+             PreparedStatement countReservations = con.prepareStatement("SELECT COUNT(*) FROM Reservations");
+             PreparedStatement selectVaccines = con.prepareStatement("SELECT Name, Doses FROM Vaccines")) {
+            int differences = 0;
+            differences += compare("availabilities", getAvailabilityCount(), count(countAvailable));
+            differences += compare("reservations", reservations.size(), count(countReservations));
+
+            Map<String, Long> database = new TreeMap<>();
+            ResultSet rs = selectVaccines.executeQuery();
+            while (rs.next()) {
+                database.put(key(rs.getString(1)), rs.getLong(2));
+            }
+            Map<String, Long> names = new TreeMap<>(doses);
+            database.keySet().forEach(name -> names.putIfAbsent(name, 0L));
+            for (String name : names.keySet()) {
+                differences += compare("doses of " + name, doses.getOrDefault(name, 0L),
+                        database.getOrDefault(name, 0L));
+            }
+            return differences;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static long count(PreparedStatement statement) throws SQLException {
+        ResultSet rs = statement.executeQuery();
+        rs.next();
+        return rs.getLong(1);
+    }
+
+    private static int compare(String what, long journal, long database) {
+        if (journal == database) {
+            return 0;
+        }
+        System.out.printf("%s: journal %d, database %d%n", what, journal, database);
+        return 1;
+    }
+
+    private CompactIntSet slots(int day) {
+        return available.computeIfAbsent(day, d -> new CompactIntSet());
+    }
+
+    private static String key(String vaccine) {
+        return ConnectionManager.getDialect().nameKey(vaccine);
+    }
+
+    private int idOf(String caregiver) {
+        return caregiverIds.computeIfAbsent(caregiver, c -> caregiverIds.size());
+    }
+}
@@ -0,0 +1,205 @@
+package scheduler.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The process-wide registry of timers and gauges.
+ *
+ * Timers are looked up by name and record latencies into a LatencyHistogram, so recording costs a map
+ * lookup and a few atomic increments. Every timer and gauge is also registered as a JMX MXBean under the
+ * "scheduler" domain, and setting MetricsDumpSeconds prints all of them periodically to standard error.
+ */
+public class Metrics {
+
+    private static final String DOMAIN = "scheduler";
+
+    private static final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private static final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService dumper = null;
+
+    public static Timer timer(String name) {
+        Timer timer = timers.get(name);
+        if (timer == null) {
+            timer = timers.computeIfAbsent(name, Timer::new);
+            register("Timer", name, timer);
+        }
+        return timer;
+    }
+
+    public static void gauge(String name, LongSupplier value) {
+        Gauge gauge = new Gauge(value);
+        if (gauges.putIfAbsent(name, gauge) == null) {
+            register("Gauge", name, gauge);
+        }
+    }
+
+    /**
+     * Starts the periodic dump if MetricsDumpSeconds is set. Calling it more than once has no effect.
+     */
+    public static synchronized void startDumpFromSettings() {
+        String value = System.getProperty("MetricsDumpSeconds", System.getenv("MetricsDumpSeconds"));
+        if (dumper != null || value == null || value.isEmpty()) {
+            return;
+        }
+        long seconds;
+        try {
+            seconds = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid value for MetricsDumpSeconds: " + value);
+            return;
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> dump(System.err), seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    public static void dump(PrintStream out) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Gauge> entry : new TreeMap<>(gauges).entrySet()) {
+            sb.append(entry.getKey()).append(' ').append(entry.getValue().getValue()).append('\n');
+        }
+        for (Map.Entry<String, Timer> entry : new TreeMap<>(timers).entrySet()) {
+            Timer t = entry.getValue();
+            if (t.getCount() == 0) {
+                continue;
+            }
+            sb.append(String.format("%s count=%d errors=%d mean=%dus p50=%dus p95=%dus p99=%dus max=%dus%n",
+                    entry.getKey(), t.getCount(), t.getErrors(), t.getMeanMicros(), t.getP50Micros(),
+                    t.getP95Micros(), t.getP99Micros(), t.getMaxMicros()));
+        }
+        out.print(sb);
+        out.flush();
+    }
+
+    private static void register(String type, String name, Object bean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(bean, objectName);
+            }
+        } catch (JMException e) {
+            // metrics are still recorded and dumped without JMX
+        }
+    }
+
+    public interface TimerMXBean {
+        long getCount();
+
+        long getErrors();
+
+        long getMeanMicros();
+
+        long getP50Micros();
+
+        long getP95Micros();
+
+        long getP99Micros();
+
+        long getMaxMicros();
+
+        void reset();
+    }
+
+    public interface GaugeMXBean {
+        long getValue();
+    }
+
+    public static class Timer implements TimerMXBean {
+        private final String name;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+
+        private Timer(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void record(long nanos) {
+            histogram.record(nanos);
+        }
+
+        /**
+         * Records the time since start, a value from System.nanoTime().
+         */
+        public void recordSince(long start) {
+            histogram.record(System.nanoTime() - start);
+        }
+
+        public void recordError() {
+            errors.increment();
+        }
+
+        @Override
+        public long getCount() {
+            return histogram.getCount();
+        }
+
+        @Override
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        @Override
+        public long getMeanMicros() {
+            return histogram.getMean() / 1000;
+        }
+
+        @Override
+        public long getP50Micros() {
+            return histogram.getPercentile(0.50) / 1000;
+        }
+
+        @Override
+        public long getP95Micros() {
+            return histogram.getPercentile(0.95) / 1000;
+        }
+
+        @Override
+        public long getP99Micros() {
+            return histogram.getPercentile(0.99) / 1000;
+        }
+
+        @Override
+        public long getMaxMicros() {
+            return histogram.getMax() / 1000;
+        }
+
+        @Override
+        public void reset() {
+            histogram.reset();
+            errors.reset();
+        }
+    }
+
+    private static class Gauge implements GaugeMXBean {
+        private final LongSupplier value;
+
+        private Gauge(LongSupplier value) {
+            this.value = value;
+        }
+
+        @Override
+        public long getValue() {
+            return value.getAsLong();
+        }
+    }
+}
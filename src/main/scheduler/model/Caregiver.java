@@ -4,9 +4,17 @@ import scheduler.db.ConnectionManager;
 import scheduler.util.Util;
 
 import java.sql.*;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class Caregiver {
+    // every day of the week, Monday first
+    public static final int ALL_WEEKDAYS = 0b1111111;
+    private static final int MAX_UPLOAD_DAYS = 366;
+
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
@@ -41,8 +49,7 @@ public class Caregiver {
         Connection con = cm.createConnection();
 
         String addCaregiver = "INSERT INTO Caregivers VALUES (? , ?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addCaregiver);
+        try (PreparedStatement statement = con.prepareStatement(addCaregiver)) {
             statement.setString(1, this.username);
             statement.setBytes(2, this.salt);
             statement.setBytes(3, this.hash);
@@ -59,8 +66,7 @@ public class Caregiver {
         Connection con = cm.createConnection();
 
         String addAvailability = "INSERT INTO Availabilities VALUES (? , ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addAvailability);
+        try (PreparedStatement statement = con.prepareStatement(addAvailability)) {
             statement.setDate(1, d);
             statement.setString(2, this.username);
             statement.executeUpdate();
@@ -71,6 +77,85 @@ public class Caregiver {
         }
     }
 
+    /**
+     * Uploads availability for every day from start to end (inclusive) whose weekday is set in weekdayMask,
+     * where bit 0 is Monday and bit 6 is Sunday. All rows are written in one batched transaction and days
+     * that are already uploaded are skipped; the result lists the days that were inserted.
+     */
+    public AvailabilityUpload uploadAvailability(Date start, Date end, int weekdayMask) throws SQLException {
+        LocalDate first = start.toLocalDate();
+        LocalDate last = end.toLocalDate();
+        if (last.isBefore(first)) {
+            throw new IllegalArgumentException("End date is before start date!");
+        }
+        if (ChronoUnit.DAYS.between(first, last) >= MAX_UPLOAD_DAYS) {
+            throw new IllegalArgumentException("Cannot upload more than " + MAX_UPLOAD_DAYS + " days at once!");
+        }
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String addAvailability = "INSERT INTO Availabilities SELECT ?, ? " +
+                "WHERE NOT EXISTS (SELECT 1 FROM Availabilities WHERE Time = ? AND Username = ?)";
+        try {
+            con.setAutoCommit(false);
+            List<Date> requested = new ArrayList<>();
+            List<Date> inserted = new ArrayList<>();
+            try (PreparedStatement statement = con.prepareStatement(addAvailability)) {
+                for (LocalDate day = first; !day.isAfter(last); day = day.plusDays(1)) {
+                    if ((weekdayMask & (1 << (day.getDayOfWeek().getValue() - 1))) == 0) {
+                        continue;
+                    }
+                    Date d = Date.valueOf(day);
+                    statement.setDate(1, d);
+                    statement.setString(2, this.username);
+                    statement.setDate(3, d);
+                    statement.setString(4, this.username);
+                    statement.addBatch();
+                    requested.add(d);
+                }
+                int[] counts = statement.executeBatch();
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+                        inserted.add(requested.get(i));
+                    }
+                }
+            }
+            con.commit();
+            return new AvailabilityUpload(inserted, requested.size() - inserted.size());
+        } catch (SQLException e) {
+            con.rollback();
+            throw new SQLException();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    public static class AvailabilityUpload {
+        private final List<Date> dates;
+        private final int skipped;
+
+        private AvailabilityUpload(List<Date> dates, int skipped) {
+            this.dates = dates;
+            this.skipped = skipped;
+        }
+
+        /**
+         * The days that were inserted, in date order.
+         */
+        public List<Date> getDates() {
+            return dates;
+        }
+
+        public int getInserted() {
+            return dates.size();
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+    }
+
     public static class CaregiverBuilder {
         private final String username;
         private final byte[] salt;
@@ -103,8 +188,7 @@ public class Caregiver {
             Connection con = cm.createConnection();
 
             String getCaregiver = "SELECT Salt, Hash FROM Caregivers WHERE Username = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getCaregiver);
+            try (PreparedStatement statement = con.prepareStatement(getCaregiver)) {
                 statement.setString(1, this.username);
                 ResultSet resultSet = statement.executeQuery();
                 while (resultSet.next()) {
@@ -32,8 +32,7 @@ public class Patient {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
         String addPatient = "INSERT INTO Patients VALUES (? , ?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addPatient);
+        try (PreparedStatement statement = con.prepareStatement(addPatient)) {
             statement.setString(1, this.username);
             statement.setBytes(2, this.salt);
             statement.setBytes(3, this.hash);
@@ -77,8 +76,7 @@ public class Patient {
             Connection con = cm.createConnection();
 
             String getPatient = "SELECT Salt, Hash FROM Patients WHERE Username = ?";
-            try{
-                PreparedStatement statement = con.prepareStatement(getPatient);
+            try (PreparedStatement statement = con.prepareStatement(getPatient)) {
                 statement.setString(1, this.username);
                 ResultSet resultSet = statement.executeQuery();
                 while(resultSet.next()){
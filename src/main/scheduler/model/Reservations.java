@@ -34,8 +34,7 @@ public class Reservations {
         Connection con = cm.createConnection();
 
         String addReservations = "INSERT INTO Reservations VALUES (?, ?, ?, ?, ?)";
-        try{
-            PreparedStatement statement = con.prepareStatement(addReservations);
+        try (PreparedStatement statement = con.prepareStatement(addReservations)) {
             statement.setString(1, this.appointmentID);
             statement.setString(2,this.patient);
             statement.setString(3, caregiver);
@@ -35,8 +35,7 @@ public class Vaccine {
         Connection con = cm.createConnection();
 
         String addDoses = "INSERT INTO vaccines VALUES (?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addDoses);
+        try (PreparedStatement statement = con.prepareStatement(addDoses)) {
             statement.setString(1, this.vaccineName);
             statement.setInt(2, this.availableDoses);
             statement.executeUpdate();
@@ -47,51 +46,6 @@ public class Vaccine {
         }
     }
 
-    // Increment the available doses
-    public void increaseAvailableDoses(int num) throws SQLException {
-        if (num <= 0) {
-            throw new IllegalArgumentException("Argument cannot be negative!");
-        }
-        this.availableDoses += num;
-
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
-        try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
-    }
-
-    // Decrement the available doses
-    public void decreaseAvailableDoses(int num) throws SQLException {
-        if (this.availableDoses - num < 0) {
-            throw new IllegalArgumentException("Not enough available doses!");
-        }
-        this.availableDoses -= num;
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
-        try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
-    }
-
     @Override
     public String toString() {
         return "Vaccine{" +
@@ -127,8 +81,7 @@ public class Vaccine {
             Connection con = cm.createConnection();
 
             String getVaccine = "SELECT Name, Doses FROM Vaccines WHERE Name = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getVaccine);
+            try (PreparedStatement statement = con.prepareStatement(getVaccine)) {
                 statement.setString(1, this.vaccineName);
                 ResultSet resultSet = statement.executeQuery();
                 while (resultSet.next()) {
@@ -0,0 +1,106 @@
+package scheduler.server;
+
+import scheduler.Scheduler;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the scheduler's text commands to many clients at once over TCP.
+ *
+ * Every connection is its own session with its own logged-in user, and is handled on a virtual thread
+ * when the JVM supports them (a plain thread otherwise). Sessions share the connection pool and all the
+ * in-memory caches. Connect with e.g. {@code nc localhost 8414} and type commands as in the console.
+ */
+public class SchedulerServer {
+
+    private static final int DEFAULT_PORT = 8414;
+
+    private final int port;
+    private final ExecutorService sessions = newSessionExecutor();
+    private final AtomicInteger activeSessions = new AtomicInteger();
+
+    public SchedulerServer(int port) {
+        this.port = port;
+    }
+
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        if (args.length > 0) {
+            try {
+                port = Integer.parseInt(args[0]);
+            } catch (NumberFormatException e) {
+                System.out.println("Please enter a valid port!");
+                return;
+            }
+        }
+        try {
+            new SchedulerServer(port).run();
+        } catch (IOException e) {
+            System.out.println("Could not listen on port " + port);
+            e.printStackTrace();
+        }
+    }
+
+    public void run() throws IOException {
+        Scheduler.preload();
+        // only local clients: the protocol sends passwords in the clear
+        try (ServerSocket server = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress())) {
+            System.out.println("Scheduler listening on " + server.getLocalSocketAddress());
+            while (true) {
+                Socket socket = server.accept();
+                sessions.execute(() -> serve(socket));
+            }
+        }
+    }
+
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    private void serve(Socket socket) {
+        activeSessions.incrementAndGet();
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintStream out = new PrintStream(
+                     new BufferedOutputStream(s.getOutputStream()), false, StandardCharsets.UTF_8)) {
+            Scheduler scheduler = new Scheduler(out);
+            Scheduler.printMenu(out);
+            while (true) {
+                out.print("> ");
+                out.flush();
+                String line = in.readLine();
+                if (line == null || !scheduler.execute(line)) {
+                    break;
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // the client went away
+        } finally {
+            activeSessions.decrementAndGet();
+        }
+    }
+
+    // virtual threads need Java 21; look them up reflectively so the server still runs on older JVMs
+    private static ExecutorService newSessionExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package scheduler.service;
+
+import scheduler.db.ConnectionManager;
+import scheduler.metrics.Metrics;
+import scheduler.util.CompactIntSet;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All of Availabilities in memory, for searches over a range of dates.
+ *
+ * Caregiver usernames are dictionary-encoded to dense int ids and dates to epoch days, and every day holds
+ * the ids of its available caregivers in a CompactIntSet, which is a sorted int array for sparse days and
+ * a bitmap for busy ones. "Who is free on day D", "count free per day" and "first free day after D" are
+ * answered from primitive arrays without boxing.
+ *
+ * The table is read with a single query the first time the index is used and afterwards kept current by
+ * the callers: upload_availability reports new slots and reserve the slots it claims. The query runs outside
+ * the monitor, so those reports never wait for it; the ones made meanwhile are queued and applied to the
+ * loaded days before they are published. Writers that change the table behind its back, such as bulk_import,
+ * call invalidateAll, which discards loads still running, and the next search reads the table again.
+ *
+ * The index never grows beyond AvailabilityIndexMaxBytes (64 MB by default). If it would, it is dropped
+ * and searches query the database for their range instead until it is invalidated. The size in use is
+ * published as the availability.bytes gauge.
+ */
+public class AvailabilityIndex {
+
+    public static final int MAX_SEARCH_DAYS = 366;
+
+    private static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    private static final AvailabilityIndex instance = new AvailabilityIndex();
+
+    private final long maxBytes;
+
+    // null until a load is published, and again after an invalidation or once over budget
+    private Days index = null;
+    private boolean overBudget = false;
+
+    // bumped on every invalidation; loads started before the bump are discarded
+    private long generation = 0;
+    // loads running outside the monitor, and the changes reported meanwhile that they have yet to apply
+    private int loading = 0;
+    private final List<Change> pending = new ArrayList<>();
+
+    private AvailabilityIndex() {
+        String setting = System.getProperty("AvailabilityIndexMaxBytes", System.getenv("AvailabilityIndexMaxBytes"));
+        long max = DEFAULT_MAX_BYTES;
+        if (setting != null && !setting.isEmpty()) {
+            try {
+                max = Long.parseLong(setting);
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring invalid value for AvailabilityIndexMaxBytes: " + setting);
+            }
+        }
+        this.maxBytes = max;
+        Metrics.gauge("availability.bytes", this::getSizeInBytes);
+        Metrics.gauge("availability.caregiverDays", this::getCaregiverDays);
+    }
+
+    public static AvailabilityIndex getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns, for every day from start to end inclusive, the available caregivers in alphabetical order.
+     */
+    public DayCount[] search(Date start, Date end) throws SQLException {
+        int from = epochDay(start);
+        int count = epochDay(end) - from + 1;
+        if (count <= 0 || count > MAX_SEARCH_DAYS) {
+            throw new IllegalArgumentException("Invalid date range");
+        }
+        ensureLoaded();
+        List<List<String>> names = new ArrayList<>(count);
+        synchronized (this) {
+            if (index != null) {
+                for (int i = 0; i < count; i++) {
+                    names.add(index.namesOf(from + i));
+                }
+            }
+        }
+        if (names.isEmpty()) {
+            names = queryRange(start, end, from, count);
+        }
+        DayCount[] result = new DayCount[count];
+        for (int i = 0; i < count; i++) {
+            List<String> day = names.get(i);
+            Collections.sort(day);
+            result[i] = new DayCount(Date.valueOf(LocalDate.ofEpochDay(from + i)), day);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of available caregivers on each day from start to end inclusive.
+     */
+    public int[] countFree(Date start, Date end) throws SQLException {
+        int from = epochDay(start);
+        int count = epochDay(end) - from + 1;
+        if (count <= 0 || count > MAX_SEARCH_DAYS) {
+            throw new IllegalArgumentException("Invalid date range");
+        }
+        ensureLoaded();
+        int[] counts = new int[count];
+        synchronized (this) {
+            if (index != null) {
+                for (int i = 0; i < count; i++) {
+                    CompactIntSet set = index.setOf(from + i);
+                    counts[i] = set == null ? 0 : set.size();
+                }
+                return counts;
+            }
+        }
+        List<List<String>> names = queryRange(start, end, from, count);
+        for (int i = 0; i < count; i++) {
+            counts[i] = names.get(i).size();
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the first day on or after the given one on which any caregiver is available, or null.
+     */
+    public Date firstFreeDay(Date after) throws SQLException {
+        ensureLoaded();
+        synchronized (this) {
+            if (index != null) {
+                return index.firstFreeDay(epochDay(after));
+            }
+        }
+        return queryFirstFreeDay(after);
+    }
+
+    public synchronized void added(Date date, String caregiver) {
+        changed(new Change(epochDay(date), caregiver, true));
+    }
+
+    public synchronized void removed(Date date, String caregiver) {
+        changed(new Change(epochDay(date), caregiver, false));
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        index = null;
+        overBudget = false;
+        pending.clear();
+    }
+
+    public synchronized long getSizeInBytes() {
+        return index == null ? 0 : index.bytes;
+    }
+
+    public synchronized long getCaregiverDays() {
+        return index == null ? 0 : index.caregiverDays;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    private void changed(Change change) {
+        if (index != null) {
+            change.applyTo(index);
+            checkBudget();
+        } else if (loading > 0 && !overBudget) {
+            pending.add(change);
+        }
+    }
+
+    private void checkBudget() {
+        if (index.bytes > maxBytes) {
+            System.err.println("Availability index exceeds " + maxBytes + " bytes, searching the database instead");
+            index = null;
+            overBudget = true;
+        }
+    }
+
+    // like CaregiverAssignment.week: the query runs unlocked and its result is published only if no
+    // invalidation happened meanwhile and no other load was published first
+    private void ensureLoaded() throws SQLException {
+        long loadGeneration;
+        synchronized (this) {
+            if (index != null || overBudget) {
+                return;
+            }
+            if (loading++ == 0) {
+                pending.clear();
+            }
+            loadGeneration = generation;
+        }
+        Days loaded;
+        try {
+            loaded = load();
+        } catch (SQLException | RuntimeException e) {
+            synchronized (this) {
+                loading--;
+            }
+            throw e;
+        }
+        // in the same block as the publish, so a load starting meanwhile cannot clear the queued changes
+        synchronized (this) {
+            loading--;
+            if (index != null || overBudget || generation != loadGeneration) {
+                return;
+            }
+            if (loaded == null) {
+                System.err.println("Availability index exceeds " + maxBytes + " bytes, searching the database instead");
+                overBudget = true;
+                return;
+            }
+            for (Change change : pending) {
+                change.applyTo(loaded);
+            }
+            pending.clear();
+            index = loaded;
+            checkBudget();
+        }
+    }
+
+    // null if the table does not fit in maxBytes
+    private Days load() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try (PreparedStatement statement = con.prepareStatement("SELECT Time, Username FROM Availabilities")) {
+            statement.setFetchSize(ConnectionManager.getFetchSize());
+            ResultSet rs = statement.executeQuery();
+            Days loaded = new Days();
+            while (rs.next()) {
+                loaded.add(epochDay(rs.getDate(1)), rs.getString(2));
+                if (loaded.bytes > maxBytes) {
+                    return null;
+                }
+            }
+            return loaded;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static int epochDay(Date date) {
+        return (int) date.toLocalDate().toEpochDay();
+    }
+
+    private static List<List<String>> queryRange(Date start, Date end, int from, int count) throws SQLException {
+        List<List<String>> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(new ArrayList<>());
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        String select = "SELECT Time, Username FROM Availabilities WHERE Time >= ? AND Time <= ?";
+        try (PreparedStatement statement = con.prepareStatement(select)) {
+            statement.setDate(1, start);
+            statement.setDate(2, end);
+            statement.setFetchSize(ConnectionManager.getFetchSize());
+            ResultSet rs = statement.executeQuery();
+            while (rs.next()) {
+                names.get(epochDay(rs.getDate(1)) - from).add(rs.getString(2));
+            }
+            return names;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static Date queryFirstFreeDay(Date after) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try (PreparedStatement statement = con.prepareStatement(
+                "SELECT MIN(Time) FROM Availabilities WHERE Time >= ?")) {
+            statement.setDate(1, after);
+            ResultSet rs = statement.executeQuery();
+            return rs.next() ? rs.getDate(1) : null;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    /**
+     * The loaded table: the caregiver dictionary and one set of caregiver ids per day.
+     */
+    private static class Days {
+        // the dictionary: ids are handed out in order of first appearance and never reused
+        private final Map<String, Integer> ids = new HashMap<>();
+        private String[] names = new String[16];
+
+        // sets[i] holds the caregivers available on epoch day firstDay + i, or null if nobody is
+        private CompactIntSet[] sets = new CompactIntSet[0];
+        private int firstDay = 0;
+
+        private long caregiverDays = 0;
+        private long bytes = 0;
+
+        private void add(int day, String caregiver) {
+            int id = idOf(caregiver);
+            if (sets.length == 0) {
+                sets = new CompactIntSet[1];
+                firstDay = day;
+            } else if (day < firstDay || day >= firstDay + sets.length) {
+                int newFirst = Math.min(firstDay, day);
+                int newLength = Math.max(firstDay + sets.length, day + 1) - newFirst;
+                CompactIntSet[] grown = new CompactIntSet[newLength];
+                System.arraycopy(sets, 0, grown, firstDay - newFirst, sets.length);
+                bytes += 8L * (newLength - sets.length);
+                sets = grown;
+                firstDay = newFirst;
+            }
+            CompactIntSet set = sets[day - firstDay];
+            if (set == null) {
+                set = new CompactIntSet();
+                sets[day - firstDay] = set;
+                bytes += set.sizeInBytes();
+            }
+            long before = set.sizeInBytes();
+            if (set.add(id)) {
+                caregiverDays++;
+                bytes += set.sizeInBytes() - before;
+            }
+        }
+
+        private void remove(int day, String caregiver) {
+            Integer id = ids.get(caregiver);
+            CompactIntSet set = id == null ? null : setOf(day);
+            if (set != null) {
+                long before = set.sizeInBytes();
+                if (set.remove(id)) {
+                    caregiverDays--;
+                    bytes += set.sizeInBytes() - before;
+                }
+            }
+        }
+
+        private int idOf(String caregiver) {
+            Integer id = ids.get(caregiver);
+            if (id == null) {
+                id = ids.size();
+                ids.put(caregiver, id);
+                if (id == names.length) {
+                    names = Arrays.copyOf(names, names.length * 2);
+                }
+                names[id] = caregiver;
+                // the map entry, the boxed id and the name array slot; the string itself is shared
+                bytes += 64;
+            }
+            return id;
+        }
+
+        private CompactIntSet setOf(int day) {
+            int i = day - firstDay;
+            return i >= 0 && i < sets.length ? sets[i] : null;
+        }
+
+        private List<String> namesOf(int day) {
+            CompactIntSet set = setOf(day);
+            List<String> result = new ArrayList<>(set == null ? 0 : set.size());
+            if (set != null) {
+                for (int id : set.toArray()) {
+                    result.add(names[id]);
+                }
+            }
+            return result;
+        }
+
+        private Date firstFreeDay(int after) {
+            for (int i = Math.max(after, firstDay) - firstDay; i < sets.length; i++) {
+                if (sets[i] != null && !sets[i].isEmpty()) {
+                    return Date.valueOf(LocalDate.ofEpochDay(firstDay + i));
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * An added or removed slot reported while a load was running.
+     */
+    private static class Change {
+        private final int day;
+        private final String caregiver;
+        private final boolean added;
+
+        private Change(int day, String caregiver, boolean added) {
+            this.day = day;
+            this.caregiver = caregiver;
+            this.added = added;
+        }
+
+        private void applyTo(Days days) {
+            if (added) {
+                days.add(day, caregiver);
+            } else {
+                days.remove(day, caregiver);
+            }
+        }
+    }
+
+    public static class DayCount {
+        private final Date date;
+        private final List<String> caregivers;
+
+        private DayCount(Date date, List<String> caregivers) {
+            this.date = date;
+            this.caregivers = caregivers;
+        }
+
+        public Date getDate() {
+            return date;
+        }
+
+        public int getCount() {
+            return caregivers.size();
+        }
+
+        public List<String> getCaregivers() {
+            return caregivers;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package scheduler.service;
+
+import scheduler.db.ConnectionManager;
+import scheduler.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Chooses which available caregiver gets a booking so that work is spread evenly over the staff.
+ *
+ * For every week in use it keeps the caregivers available on each day in a set ordered by how many
+ * appointments they already have that week, so the least busy caregiver is found in O(log n) without a
+ * query. A week is read from the database the first time one of its days is asked for, and afterwards
+ * kept current by the callers: reserve reports bookings, upload_availability new slots and cancel both.
+ * Writers that change the tables behind its back, such as bulk_import, call invalidateAll.
+ */
+public class CaregiverAssignment {
+
+    private static final int MAX_WEEKS = 104;
+
+    private static final CaregiverAssignment instance = new CaregiverAssignment();
+
+    private final Map<LocalDate, Week> weeks = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LocalDate, Week> eldest) {
+            return size() > MAX_WEEKS;
+        }
+    };
+
+    // bumped on every invalidation; weeks loaded before the bump are discarded
+    private long generation = 0;
+
+    private final AtomicLong picks = new AtomicLong();
+    private final AtomicLong weekLoads = new AtomicLong();
+
+    private CaregiverAssignment() {
+        Metrics.gauge("assignment.picks", picks::get);
+        Metrics.gauge("assignment.weekLoads", weekLoads::get);
+    }
+
+    public static CaregiverAssignment getInstance() {
+        return instance;
+    }
+
+    /**
+     * Takes the least busy caregiver available on the date out of the candidates and returns them, or
+     * null if nobody is available. The caller must report the outcome with booked or release.
+     */
+    public String pick(Date date) throws SQLException {
+        return pick(date, caregiver -> false);
+    }
+
+    /**
+     * Like pick, but passes over the caregivers for which skip is true.
+     */
+    public String pick(Date date, Predicate<String> skip) throws SQLException {
+        LocalDate day = date.toLocalDate();
+        Week week = week(day);
+        synchronized (this) {
+            TreeSet<String> candidates = week.available.get(day);
+            if (candidates == null) {
+                return null;
+            }
+            for (String caregiver : candidates) {
+                if (!skip.test(caregiver)) {
+                    candidates.remove(caregiver);
+                    picks.incrementAndGet();
+                    return caregiver;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Records that the caregiver was booked on the date. The slot is no longer available.
+     */
+    public synchronized void booked(Date date, String caregiver) {
+        LocalDate day = date.toLocalDate();
+        Week week = weeks.get(weekOf(day));
+        if (week != null) {
+            week.remove(day, caregiver);
+            week.changeLoad(caregiver, 1);
+        }
+    }
+
+    /**
+     * Puts back a caregiver returned by pick whose booking did not go through.
+     */
+    public synchronized void release(Date date, String caregiver) {
+        added(date, caregiver);
+    }
+
+    /**
+     * Records that the caregiver uploaded availability for the date.
+     */
+    public synchronized void added(Date date, String caregiver) {
+        LocalDate day = date.toLocalDate();
+        Week week = weeks.get(weekOf(day));
+        if (week != null) {
+            week.add(day, caregiver);
+        }
+    }
+
+    /**
+     * Records that the caregiver was found to be unavailable on the date after all.
+     */
+    public synchronized void removed(Date date, String caregiver) {
+        LocalDate day = date.toLocalDate();
+        Week week = weeks.get(weekOf(day));
+        if (week != null) {
+            week.remove(day, caregiver);
+        }
+    }
+
+    /**
+     * Records that a booking of the caregiver on the date was cancelled and the slot is available again.
+     */
+    public synchronized void cancelled(Date date, String caregiver) {
+        LocalDate day = date.toLocalDate();
+        Week week = weeks.get(weekOf(day));
+        if (week != null) {
+            week.changeLoad(caregiver, -1);
+            week.add(day, caregiver);
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        weeks.clear();
+    }
+
+    private Week week(LocalDate day) throws SQLException {
+        LocalDate monday = weekOf(day);
+        long loadGeneration;
+        synchronized (this) {
+            Week week = weeks.get(monday);
+            if (week != null) {
+                return week;
+            }
+            loadGeneration = generation;
+        }
+        Week loaded = load(monday);
+        weekLoads.incrementAndGet();
+        synchronized (this) {
+            Week week = weeks.get(monday);
+            if (week != null) {
+                // another thread loaded it first and may have changed it since
+                return week;
+            }
+            if (generation == loadGeneration) {
+                weeks.put(monday, loaded);
+            }
+            return loaded;
+        }
+    }
+
+    private static LocalDate weekOf(LocalDate day) {
+        return day.with(DayOfWeek.MONDAY);
+    }
+
+    private static Week load(LocalDate monday) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        Date start = Date.valueOf(monday);
+        Date end = Date.valueOf(monday.plusDays(6));
+        String countReservations = "SELECT Caregiver, COUNT(*) FROM Reservations " +
+                "WHERE Time >= ? AND Time <= ? GROUP BY Caregiver";
+        String selectAvailable = "SELECT Time, Username FROM Availabilities WHERE Time >= ? AND Time <= ?";
+        try (PreparedStatement counts = con.prepareStatement(countReservations);
+             PreparedStatement available = con.prepareStatement(selectAvailable)) {
+            Week week = new Week();
+            counts.setDate(1, start);
+            counts.setDate(2, end);
+            ResultSet rs = counts.executeQuery();
+            while (rs.next()) {
+                week.load.put(rs.getString(1), rs.getInt(2));
+            }
+            available.setDate(1, start);
+            available.setDate(2, end);
+            available.setFetchSize(ConnectionManager.getFetchSize());
+            rs = available.executeQuery();
+            while (rs.next()) {
+                week.add(rs.getDate(1).toLocalDate(), rs.getString(2));
+            }
+            return week;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    /**
+     * One Monday-to-Sunday week: every caregiver's number of bookings and, per day, the available
+     * caregivers with the fewest bookings first. A caregiver's load must only change while they are out
+     * of every day's set, since the sets are ordered by it.
+     */
+    private static class Week {
+        private final Map<String, Integer> load = new HashMap<>();
+        private final Map<LocalDate, TreeSet<String>> available = new HashMap<>();
+        private final Comparator<String> byLoad = Comparator.<String>comparingInt(this::loadOf)
+                .thenComparing(Comparator.naturalOrder());
+
+        private int loadOf(String caregiver) {
+            return load.getOrDefault(caregiver, 0);
+        }
+
+        private void add(LocalDate day, String caregiver) {
+            available.computeIfAbsent(day, d -> new TreeSet<>(byLoad)).add(caregiver);
+        }
+
+        private void remove(LocalDate day, String caregiver) {
+            TreeSet<String> candidates = available.get(day);
+            if (candidates != null) {
+                candidates.remove(caregiver);
+            }
+        }
+
+        private void changeLoad(String caregiver, int delta) {
+            LocalDate[] days = available.keySet().toArray(new LocalDate[0]);
+            boolean[] present = new boolean[days.length];
+            for (int i = 0; i < days.length; i++) {
+                present[i] = available.get(days[i]).remove(caregiver);
+            }
+            load.merge(caregiver, delta, Integer::sum);
+            for (int i = 0; i < days.length; i++) {
+                if (present[i]) {
+                    available.get(days[i]).add(caregiver);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package scheduler.service;
+
+import scheduler.db.ConnectionManager;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * An in-memory, column-oriented copy of Reservations for the report command, so reports never run
+ * GROUP BY queries against the tables that bookings use.
+ *
+ * Every reservation is a row across parallel int arrays: patient, caregiver and vaccine as
+ * dictionary-encoded ids, and the date as an epoch day. The loaded reservation IDs are kept sorted in an
+ * int array alongside their rows, so a cancelled one is found by binary search. Aggregations scan the arrays
+ * with parallel streams, each thread counting into its own primitive array before the arrays are summed.
+ *
+ * refresh reads only the rows added since the last refresh. Reservation IDs are handed out in blocks, so
+ * a booking may commit after one with a higher ID; the refresh therefore starts at the lowest ID missing
+ * within a window below the highest one loaded, and skips the IDs it already has. While IDs arrive without
+ * gaps that is just the new rows. Cancellations are reported with removed.
+ */
+public class ReservationColumns {
+
+    // far more than the number of bookings in flight at once, see refresh
+    private static final int REFRESH_WINDOW = 10_000;
+    private static final int REMOVED = Integer.MIN_VALUE;
+
+    private static final ReservationColumns instance = new ReservationColumns();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private int[] patients = new int[1024];
+    private int[] caregivers = new int[1024];
+    private int[] vaccines = new int[1024];
+    private int[] days = new int[1024];
+    private int size = 0;
+
+    private final Dictionary patientNames = new Dictionary();
+    private final Dictionary caregiverNames = new Dictionary();
+    private final Dictionary vaccineNames = new Dictionary();
+
+    // the loaded reservation IDs in ascending order and the row of each, for skipping rows already loaded
+    // and finding cancelled ones
+    private int[] sortedIds = new int[1024];
+    private int[] sortedRows = new int[1024];
+    private int maxId = 0;
+
+    private ReservationColumns() {
+    }
+
+    public static ReservationColumns getInstance() {
+        return instance;
+    }
+
+    /**
+     * Loads the reservations added since the last refresh and returns how many there were.
+     */
+    public int refresh() throws SQLException {
+        lock.writeLock().lock();
+        try {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            if (con == null) {
+                throw new SQLException("No connection available");
+            }
+            String select = "SELECT ID, Patient, Caregiver, Vaccine, Time FROM Reservations " +
+                    "WHERE ID > ? ORDER BY ID";
+            try (PreparedStatement statement = con.prepareStatement(select)) {
+                statement.setInt(1, lastWithoutGap(Math.max(0, maxId - REFRESH_WINDOW)));
+                statement.setFetchSize(ConnectionManager.getFetchSize());
+                ResultSet rs = statement.executeQuery();
+                int added = 0;
+                while (rs.next()) {
+                    int id = rs.getInt(1);
+                    if (Arrays.binarySearch(sortedIds, 0, size, id) < 0) {
+                        append(id, rs.getString(2), rs.getString(3), rs.getString(4), rs.getDate(5));
+                        maxId = Math.max(maxId, id);
+                        added++;
+                    }
+                }
+                return added;
+            } finally {
+                cm.closeConnection();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops a cancelled reservation from the reports.
+     */
+    public void removed(int id) {
+        lock.writeLock().lock();
+        try {
+            int index = Arrays.binarySearch(sortedIds, 0, size, id);
+            if (index >= 0) {
+                days[sortedRows[index]] = REMOVED;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Counts appointments per vaccine per day from start to end inclusive.
+     */
+    public DosesPerDay dosesPerDay(Date start, Date end) {
+        int from = epochDay(start);
+        int dayCount = epochDay(end) - from + 1;
+        lock.readLock().lock();
+        try {
+            int vaccineCount = vaccineNames.size();
+            int[] counts = countRows(dayCount * vaccineCount, row -> {
+                int d = days[row] - from;
+                return d >= 0 && d < dayCount ? d * vaccineCount + vaccines[row] : -1;
+            });
+            return new DosesPerDay(start, dayCount, vaccineNames.names(), counts);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Counts appointments per caregiver from start to end inclusive, by caregiver username.
+     */
+    public Map<String, Integer> appointmentsPerCaregiver(Date start, Date end) {
+        int from = epochDay(start);
+        int to = epochDay(end);
+        lock.readLock().lock();
+        try {
+            int[] counts = countRows(caregiverNames.size(),
+                    row -> days[row] >= from && days[row] <= to ? caregivers[row] : -1);
+            String[] names = caregiverNames.names();
+            Map<String, Integer> result = new TreeMap<>();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    result.put(names[i], counts[i]);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Counts appointments per day from start to end inclusive.
+     */
+    public int[] appointmentsPerDay(Date start, Date end) {
+        int from = epochDay(start);
+        int dayCount = epochDay(end) - from + 1;
+        lock.readLock().lock();
+        try {
+            return countRows(dayCount, row -> {
+                int d = days[row] - from;
+                return d >= 0 && d < dayCount ? d : -1;
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // counts rows into buckets in parallel; bucket returns -1 for rows that do not count
+    private int[] countRows(int buckets, RowBucket bucket) {
+        return IntStream.range(0, size).parallel().collect(
+                () -> new int[buckets],
+                (counts, row) -> {
+                    if (days[row] == REMOVED) {
+                        return;
+                    }
+                    int b = bucket.of(row);
+                    if (b >= 0) {
+                        counts[b]++;
+                    }
+                },
+                (a, b) -> {
+                    for (int i = 0; i < a.length; i++) {
+                        a[i] += b[i];
+                    }
+                });
+    }
+
+    // the highest ID from which every ID up to maxId is loaded, no lower than from
+    private int lastWithoutGap(int from) {
+        int index = Arrays.binarySearch(sortedIds, 0, size, from + 1);
+        if (index < 0) {
+            return from;
+        }
+        int expected = from + 1;
+        while (index < size && sortedIds[index] == expected) {
+            index++;
+            expected++;
+        }
+        return expected - 1;
+    }
+
+    private void append(int id, String patient, String caregiver, String vaccine, Date date) {
+        if (size == days.length) {
+            int capacity = size * 2;
+            sortedIds = Arrays.copyOf(sortedIds, capacity);
+            sortedRows = Arrays.copyOf(sortedRows, capacity);
+            patients = Arrays.copyOf(patients, capacity);
+            caregivers = Arrays.copyOf(caregivers, capacity);
+            vaccines = Arrays.copyOf(vaccines, capacity);
+            days = Arrays.copyOf(days, capacity);
+        }
+        // rows mostly arrive in ID order, so this rarely moves more than the few IDs committed late
+        int index = -Arrays.binarySearch(sortedIds, 0, size, id) - 1;
+        System.arraycopy(sortedIds, index, sortedIds, index + 1, size - index);
+        System.arraycopy(sortedRows, index, sortedRows, index + 1, size - index);
+        sortedIds[index] = id;
+        sortedRows[index] = size;
+        patients[size] = patientNames.idOf(patient);
+        caregivers[size] = caregiverNames.idOf(caregiver);
+        vaccines[size] = vaccineNames.idOf(vaccine);
+        days[size] = epochDay(date);
+        size++;
+    }
+
+    private static int epochDay(Date date) {
+        return (int) date.toLocalDate().toEpochDay();
+    }
+
+    private interface RowBucket {
+        int of(int row);
+    }
+
+    private static class Dictionary {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private String[] names = new String[16];
+
+        private int idOf(String name) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = ids.size();
+                ids.put(name, id);
+                if (id == names.length) {
+                    names = Arrays.copyOf(names, names.length * 2);
+                }
+                names[id] = name;
+            }
+            return id;
+        }
+
+        private int size() {
+            return ids.size();
+        }
+
+        private String[] names() {
+            return Arrays.copyOf(names, ids.size());
+        }
+    }
+
+    public static class DosesPerDay {
+        private final Date start;
+        private final int days;
+        private final String[] vaccines;
+        private final int[] counts;
+
+        private DosesPerDay(Date start, int days, String[] vaccines, int[] counts) {
+            this.start = start;
+            this.days = days;
+            this.vaccines = vaccines;
+            this.counts = counts;
+        }
+
+        public int getDays() {
+            return days;
+        }
+
+        public Date getDate(int day) {
+            return Date.valueOf(start.toLocalDate().plusDays(day));
+        }
+
+        public String[] getVaccines() {
+            return vaccines;
+        }
+
+        public int getCount(int day, int vaccine) {
+            return counts[day * vaccines.length + vaccine];
+        }
+    }
+}
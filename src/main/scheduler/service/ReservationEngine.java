@@ -0,0 +1,405 @@
+package scheduler.service;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.IdAllocator;
+import scheduler.journal.EventJournal;
+import scheduler.journal.JournalEvent;
+import scheduler.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Books appointments in a single transaction: one caregiver slot is claimed and deleted from Availabilities
+ * and the Reservations row is inserted, or nothing happens at all. The caregiver is the least busy one
+ * that week according to CaregiverAssignment; if that slot turns out to be gone already, any remaining
+ * slot on the date is claimed instead. The dose is taken from the in-memory VaccineInventory before the
+ * transaction starts and handed back if the booking does not go through.
+ *
+ * Cancelling works the other way round: the Reservations rows are deleted and the Availabilities rows put
+ * back with one batch of statements each in a single transaction, and the doses are returned to the
+ * inventory after the commit.
+ *
+ * Transactions that fail because of a deadlock or lock timeout are retried a few times with a short
+ * randomized backoff before the booking is reported as a conflict.
+ */
+public class ReservationEngine {
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long BACKOFF_MILLIS = 10;
+    private static final int ID_BLOCK_SIZE = 100;
+
+    private static final String addReservation = "INSERT INTO Reservations VALUES (?, ?, ?, ?, ?)";
+    private static final String claimCaregiver = "DELETE FROM Availabilities WHERE Time = ? AND Username = ?";
+
+    // patients and caregivers are separate tables, so a username only identifies someone together with the role
+    private static final String selectPatientReservation =
+            "SELECT ID, Patient, Caregiver, Vaccine, Time FROM Reservations WHERE ID = ? AND Patient = ?";
+    private static final String selectCaregiverReservation =
+            "SELECT ID, Patient, Caregiver, Vaccine, Time FROM Reservations WHERE ID = ? AND Caregiver = ?";
+    private static final String selectCaregiverDay =
+            "SELECT ID, Patient, Caregiver, Vaccine, Time FROM Reservations WHERE Caregiver = ? AND Time = ?";
+    private static final String deleteReservation =
+            "DELETE FROM Reservations WHERE ID = ? AND Patient = ? AND Caregiver = ?";
+    private static final String restoreAvailability = "INSERT INTO Availabilities SELECT ?, ? " +
+            "WHERE NOT EXISTS (SELECT 1 FROM Availabilities WHERE Time = ? AND Username = ?)";
+
+    // appointments cancelled per transaction by cancelDay
+    private static final int CANCEL_BATCH_SIZE = 500;
+
+    private static final AtomicLong staleAssignments = new AtomicLong();
+
+    static {
+        Metrics.gauge("reserve.staleAssignments", staleAssignments::get);
+    }
+
+    private final IdAllocator ids = new IdAllocator("Reservations",
+            "SELECT MAX(ID) FROM Reservations", ID_BLOCK_SIZE);
+
+    public Result reserve(String patient, Date date, String vaccine) {
+        VaccineInventory inventory;
+        int reserveID;
+        try {
+            inventory = VaccineInventory.getInstance();
+            reserveID = ids.next();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return Result.of(Status.ERROR);
+        }
+        if (!inventory.tryReserve(vaccine)) {
+            return Result.of(Status.NO_DOSES);
+        }
+        Result result = reserveWithRetries(patient, date, vaccine, reserveID);
+        if (result.getStatus() != Status.BOOKED) {
+            inventory.cancelReserve(vaccine);
+        }
+        return result;
+    }
+
+    private Result reserveWithRetries(String patient, Date date, String vaccine, int reserveID) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return tryReserve(patient, date, vaccine, reserveID);
+            } catch (SQLException e) {
+                if (!isTransient(e)) {
+                    e.printStackTrace();
+                    return Result.of(Status.ERROR);
+                }
+                if (attempt == MAX_ATTEMPTS) {
+                    return Result.of(Status.CONFLICT);
+                }
+                backoff(attempt);
+            }
+        }
+    }
+
+    private Result tryReserve(String patient, Date date, String vaccine, int reserveID) throws SQLException {
+        CaregiverAssignment assignment = CaregiverAssignment.getInstance();
+        String picked = assignment.pick(date);
+        if (picked == null) {
+            return Result.of(Status.NO_CAREGIVER);
+        }
+        // picked is out of CaregiverAssignment now; it goes back unless it was booked or found to be gone
+        boolean pickedSettled = false;
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            Connection con = cm.createConnection();
+            if (con == null) {
+                return Result.of(Status.ERROR);
+            }
+            try {
+                con.setAutoCommit(false);
+
+                String caregiver = null;
+                try (PreparedStatement stClaim = con.prepareStatement(claimCaregiver)) {
+                    stClaim.setDate(1, date);
+                    stClaim.setString(2, picked);
+                    if (stClaim.executeUpdate() == 1) {
+                        caregiver = picked;
+                    }
+                }
+                if (caregiver == null) {
+                    // the slot was gone after all, so take whichever one the database still has
+                    pickedSettled = true;
+                    staleAssignments.incrementAndGet();
+                    try (PreparedStatement stClaim = con.prepareStatement(
+                            ConnectionManager.getDialect().claimAvailability())) {
+                        stClaim.setDate(1, date);
+                        ResultSet rs = stClaim.executeQuery();
+                        if (!rs.next()) {
+                            con.rollback();
+                            return Result.of(Status.NO_CAREGIVER);
+                        }
+                        caregiver = rs.getString(1);
+                    }
+                }
+
+                try (PreparedStatement stReservation = con.prepareStatement(addReservation)) {
+                    stReservation.setInt(1, reserveID);
+                    stReservation.setString(2, patient);
+                    stReservation.setString(3, caregiver);
+                    stReservation.setString(4, vaccine);
+                    stReservation.setDate(5, date);
+                    stReservation.executeUpdate();
+                }
+
+                con.commit();
+                pickedSettled = true;
+                assignment.booked(date, caregiver);
+                EventJournal.getInstance().append(JournalEvent.reserved(reserveID, patient, caregiver, vaccine, date));
+                return new Result(Status.BOOKED, reserveID, caregiver);
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            }
+        } finally {
+            cm.closeConnection();
+            if (!pickedSettled) {
+                // rolled back or never started, so the slot is still in the database
+                assignment.release(date, picked);
+            }
+        }
+    }
+
+    /**
+     * Cancels one appointment of the given patient, or of the given caregiver if isCaregiver is set, returning
+     * the slot to the caregiver's availability and the dose to the inventory. The result is empty if the user
+     * has no such appointment.
+     */
+    public List<Booking> cancel(int reserveID, String user, boolean isCaregiver) throws SQLException {
+        String select = isCaregiver ? selectCaregiverReservation : selectPatientReservation;
+        List<Booking> cancelled = cancelWithRetries(con -> select(con, select, st -> {
+            st.setInt(1, reserveID);
+            st.setString(2, user);
+        }));
+        afterCancel(cancelled);
+        return cancelled;
+    }
+
+    /**
+     * Cancels every appointment of the caregiver on the date, CANCEL_BATCH_SIZE appointments per transaction.
+     */
+    public List<Booking> cancelDay(String caregiver, Date date) throws SQLException {
+        List<Booking> cancelled = new ArrayList<>();
+        // appointments found by the last batch; fewer may be cancelled when someone else cancels one first
+        int[] found = new int[1];
+        do {
+            List<Booking> batch = cancelWithRetries(con -> {
+                List<Booking> day = select(con, selectCaregiverDay, st -> {
+                    st.setString(1, caregiver);
+                    st.setDate(2, date);
+                });
+                found[0] = day.size();
+                return day.size() > CANCEL_BATCH_SIZE ? day.subList(0, CANCEL_BATCH_SIZE) : day;
+            });
+            afterCancel(batch);
+            cancelled.addAll(batch);
+        } while (found[0] > CANCEL_BATCH_SIZE);
+        return cancelled;
+    }
+
+    private List<Booking> cancelWithRetries(BookingQuery query) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return tryCancel(query);
+            } catch (SQLException e) {
+                if (!isTransient(e) || attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+                backoff(attempt);
+            }
+        }
+    }
+
+    // deletes the bookings and restores their availability in one transaction, a batch of statements each
+    private List<Booking> tryCancel(BookingQuery query) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try {
+            con.setAutoCommit(false);
+            List<Booking> found = query.find(con);
+            if (found.isEmpty()) {
+                con.rollback();
+                return found;
+            }
+
+            List<Booking> deleted = new ArrayList<>(found.size());
+            try (PreparedStatement stDelete = con.prepareStatement(deleteReservation)) {
+                for (Booking booking : found) {
+                    stDelete.setInt(1, booking.reserveID);
+                    stDelete.setString(2, booking.patient);
+                    stDelete.setString(3, booking.caregiver);
+                    stDelete.addBatch();
+                }
+                int[] counts = stDelete.executeBatch();
+                for (int i = 0; i < counts.length; i++) {
+                    // someone else may have cancelled it since it was read
+                    if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+                        deleted.add(found.get(i));
+                    }
+                }
+            }
+
+            try (PreparedStatement stRestore = con.prepareStatement(restoreAvailability)) {
+                for (Booking booking : deleted) {
+                    stRestore.setDate(1, booking.date);
+                    stRestore.setString(2, booking.caregiver);
+                    stRestore.setDate(3, booking.date);
+                    stRestore.setString(4, booking.caregiver);
+                    stRestore.addBatch();
+                }
+                stRestore.executeBatch();
+            }
+
+            con.commit();
+            return deleted;
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // doses go back through the inventory, which owns the Vaccines counts and writes them behind
+    private static void afterCancel(List<Booking> cancelled) throws SQLException {
+        if (cancelled.isEmpty()) {
+            return;
+        }
+        Map<String, Integer> doses = new HashMap<>();
+        CaregiverAssignment assignment = CaregiverAssignment.getInstance();
+        EventJournal journal = EventJournal.getInstance();
+        for (Booking booking : cancelled) {
+            doses.merge(booking.vaccine, 1, Integer::sum);
+            assignment.cancelled(booking.date, booking.caregiver);
+            journal.append(JournalEvent.cancelled(booking.reserveID, booking.patient, booking.caregiver,
+                    booking.vaccine, booking.date));
+        }
+        VaccineInventory inventory = VaccineInventory.getInstance();
+        for (Map.Entry<String, Integer> entry : doses.entrySet()) {
+            inventory.addDoses(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static List<Booking> select(Connection con, String sql, Binder binder) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(sql)) {
+            binder.bind(statement);
+            ResultSet rs = statement.executeQuery();
+            List<Booking> result = new ArrayList<>();
+            while (rs.next()) {
+                result.add(new Booking(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getDate(5)));
+            }
+            return result;
+        }
+    }
+
+    private interface BookingQuery {
+        List<Booking> find(Connection con) throws SQLException;
+    }
+
+    private interface Binder {
+        void bind(PreparedStatement statement) throws SQLException;
+    }
+
+    // deadlock victims and lock timeouts are worth retrying, anything else is a real failure
+    private static boolean isTransient(SQLException e) {
+        String state = e.getSQLState();
+        return "40001".equals(state) || "HYT00".equals(state) || e.getErrorCode() == 1205;
+    }
+
+    private static void backoff(int attempt) {
+        try {
+            Thread.sleep(BACKOFF_MILLIS * attempt + ThreadLocalRandom.current().nextLong(BACKOFF_MILLIS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public enum Status {
+        BOOKED,
+        NO_DOSES,
+        NO_CAREGIVER,
+        CONFLICT,
+        ERROR
+    }
+
+    /**
+     * One appointment as stored in Reservations.
+     */
+    public static class Booking {
+        private final int reserveID;
+        private final String patient;
+        private final String caregiver;
+        private final String vaccine;
+        private final Date date;
+
+        private Booking(int reserveID, String patient, String caregiver, String vaccine, Date date) {
+            this.reserveID = reserveID;
+            this.patient = patient;
+            this.caregiver = caregiver;
+            this.vaccine = vaccine;
+            this.date = date;
+        }
+
+        public int getReserveID() {
+            return reserveID;
+        }
+
+        public String getPatient() {
+            return patient;
+        }
+
+        public String getCaregiver() {
+            return caregiver;
+        }
+
+        public String getVaccine() {
+            return vaccine;
+        }
+
+        public Date getDate() {
+            return date;
+        }
+    }
+
+    public static class Result {
+        private final Status status;
+        private final int reserveID;
+        private final String caregiver;
+
+        private Result(Status status, int reserveID, String caregiver) {
+            this.status = status;
+            this.reserveID = reserveID;
+            this.caregiver = caregiver;
+        }
+
+        private static Result of(Status status) {
+            return new Result(status, -1, null);
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public int getReserveID() {
+            return reserveID;
+        }
+
+        public String getCaregiver() {
+            return caregiver;
+        }
+    }
+}
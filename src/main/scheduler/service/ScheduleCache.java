@@ -0,0 +1,133 @@
+package scheduler.service;
+
+import scheduler.db.ConnectionManager;
+import scheduler.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A read-through cache for search_caregiver_schedule: the available caregivers per date. Vaccine stock
+ * is served from VaccineInventory, which is always current.
+ *
+ * Dates are kept in an LRU map of bounded size and every entry expires after a fixed time to live.
+ * Writers call the invalidate methods after changing Availabilities or Vaccines. A load that races with
+ * an invalidation is not stored, so a stale result is never cached past the write that replaced it.
+ */
+public class ScheduleCache {
+
+    private static final int MAX_DATES = 1024;
+    private static final long TTL_MILLIS = 30_000;
+
+    private static final ScheduleCache instance = new ScheduleCache();
+
+    private final Map<Date, Entry<List<String>>> caregivers = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Date, Entry<List<String>>> eldest) {
+            return size() > MAX_DATES;
+        }
+    };
+
+    // bumped on every invalidation; loads that started before the bump are discarded
+    private long generation = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private ScheduleCache() {
+        Metrics.gauge("cache.schedule.hits", hits::get);
+        Metrics.gauge("cache.schedule.misses", misses::get);
+    }
+
+    public static ScheduleCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the usernames of the caregivers available on the given date, in alphabetical order.
+     */
+    public List<String> caregiversOn(Date date) throws SQLException {
+        long loadGeneration;
+        synchronized (this) {
+            Entry<List<String>> entry = caregivers.get(date);
+            if (entry != null && !entry.isExpired()) {
+                hits.incrementAndGet();
+                return entry.value;
+            }
+            misses.incrementAndGet();
+            loadGeneration = generation;
+        }
+        List<String> loaded = Collections.unmodifiableList(loadCaregivers(date));
+        synchronized (this) {
+            if (generation == loadGeneration) {
+                caregivers.put(date, new Entry<>(loaded));
+            }
+        }
+        return loaded;
+    }
+
+    public synchronized void invalidateDate(Date date) {
+        generation++;
+        caregivers.remove(date);
+    }
+
+    public synchronized void invalidateRange(Date start, Date end) {
+        generation++;
+        caregivers.keySet().removeIf(date -> !date.before(start) && !date.after(end));
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        caregivers.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static List<String> loadCaregivers(Date date) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        String selectAvailable = "SELECT Username FROM Availabilities WHERE Time = ? ORDER BY Username ASC";
+        try (PreparedStatement statement = con.prepareStatement(selectAvailable)) {
+            statement.setDate(1, date);
+            ResultSet rs = statement.executeQuery();
+            List<String> result = new ArrayList<>();
+            while (rs.next()) {
+                result.add(rs.getString(1));
+            }
+            return result;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static class Entry<T> {
+        private final T value;
+        private final long loadedAt = System.currentTimeMillis();
+
+        private Entry(T value) {
+            this.value = value;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() - loadedAt > TTL_MILLIS;
+        }
+    }
+}
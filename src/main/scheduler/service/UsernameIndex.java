@@ -0,0 +1,129 @@
+package scheduler.service;
+
+import scheduler.db.ConnectionManager;
+import scheduler.metrics.Metrics;
+import scheduler.util.BloomFilter;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory Bloom filter of the usernames taken in one account table.
+ *
+ * A username the filter has never seen is definitely free and is answered without a query; anything
+ * else is confirmed with a narrow SELECT 1. Names are lowercased because the database compares them
+ * case-insensitively. Accounts created by another process after the filter was loaded are not seen,
+ * in which case the INSERT itself rejects the duplicate.
+ */
+public class UsernameIndex {
+
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    private static final long MIN_CAPACITY = 10_000;
+
+    private static final UsernameIndex patients = new UsernameIndex("Patients");
+    private static final UsernameIndex caregivers = new UsernameIndex("Caregivers");
+
+    private final String table;
+    private volatile BloomFilter filter = null;
+    private volatile long capacity = 0;
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong definiteMisses = new AtomicLong();
+    private final AtomicLong databaseChecks = new AtomicLong();
+
+    private UsernameIndex(String table) {
+        this.table = table;
+        Metrics.gauge("usernames." + table + ".definiteMisses", definiteMisses::get);
+        Metrics.gauge("usernames." + table + ".databaseChecks", databaseChecks::get);
+    }
+
+    public static UsernameIndex patients() {
+        return patients;
+    }
+
+    public static UsernameIndex caregivers() {
+        return caregivers;
+    }
+
+    /**
+     * Rebuilds the filter from every username currently in the table.
+     */
+    public synchronized void load() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try (PreparedStatement countStatement = con.prepareStatement("SELECT COUNT(*) FROM " + table);
+             PreparedStatement statement = con.prepareStatement("SELECT Username FROM " + table)) {
+            ResultSet count = countStatement.executeQuery();
+            count.next();
+            long rows = count.getLong(1);
+            long newCapacity = Math.max(MIN_CAPACITY, rows * 2);
+            BloomFilter newFilter = new BloomFilter(newCapacity, FALSE_POSITIVE_RATE);
+
+            statement.setFetchSize(1000);
+            ResultSet rs = statement.executeQuery();
+            long loaded = 0;
+            while (rs.next()) {
+                newFilter.put(key(rs.getString(1)));
+                loaded++;
+            }
+            size.set(loaded);
+            capacity = newCapacity;
+            filter = newFilter;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    public boolean exists(String username) throws SQLException {
+        BloomFilter current = filter;
+        if (current == null || size.get() > capacity) {
+            load();
+            current = filter;
+        }
+        if (!current.mightContain(key(username))) {
+            definiteMisses.incrementAndGet();
+            return false;
+        }
+        databaseChecks.incrementAndGet();
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try (PreparedStatement statement = con.prepareStatement("SELECT 1 FROM " + table + " WHERE Username = ?")) {
+            statement.setString(1, username);
+            return statement.executeQuery().next();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    /**
+     * Records a username that has just been inserted.
+     */
+    public void added(String username) {
+        BloomFilter current = filter;
+        if (current != null) {
+            current.put(key(username));
+            size.incrementAndGet();
+        }
+    }
+
+    public long getDefiniteMisses() {
+        return definiteMisses.get();
+    }
+
+    public long getDatabaseChecks() {
+        return databaseChecks.get();
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase();
+    }
+}
@@ -0,0 +1,529 @@
+package scheduler.service;
+
+import scheduler.db.ConnectionManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the number of doses of every vaccine in memory and writes changes back to the Vaccines table
+ * in the background.
+ *
+ * Reservations take doses with a compare-and-set on the vaccine's counter, so bookings for different
+ * vaccines never contend and bookings for the same vaccine never wait on a database row lock. Every
+ * change is appended to a local delta log before it is counted as pending. The log is written by a single
+ * thread in group commits: callers queue their delta and wait until the batch it went out with is written
+ * and forced to disk, so concurrent bookings share one write and one fsync instead of taking turns at the
+ * file. A change whose batch could not be written is undone rather than counted. A flush every second rolls
+ * the log over, adds the pending deltas to Vaccines in one batch and records the flushed log sequence in
+ * IdBlocks within the same transaction. On startup any log newer than that sequence is applied before the
+ * counts are loaded.
+ *
+ * A reservation logs its dose as taken before the booking transaction commits and logs it back if the
+ * booking fails, so a crash of the process or of the machine never loses a booked dose; a crash between
+ * the two can at worst leave one dose per booking in flight counted as taken. If the log cannot be written,
+ * reservations fail instead of taking doses that would not survive a crash.
+ *
+ * The counters are authoritative for the process that owns them; run a single instance per database.
+ */
+public class VaccineInventory {
+
+    private static final long FLUSH_MILLIS = 1000;
+    private static final String LOG_SEQUENCE = "VaccineInventoryLog";
+    private static final String LOG_PREFIX = "vaccine-inventory.";
+    private static final String LOG_SUFFIX = ".log";
+
+    private static volatile VaccineInventory instance = null;
+
+    // keyed the way the database compares names, see Dialect.nameKey
+    private final Map<String, Stock> stocks = new ConcurrentHashMap<>();
+    private final Path logDir;
+    private final Object logLock = new Object();
+    private final List<Path> flushedLogs = new ArrayList<>();
+    private long logSequence;
+    private FileChannel log;
+    private final ScheduledExecutorService flusher;
+    private final LinkedBlockingQueue<LogEntry> appends = new LinkedBlockingQueue<>();
+
+    private VaccineInventory(Path logDir) throws SQLException {
+        this.logDir = logDir;
+        this.logSequence = recover();
+        load();
+        try {
+            openLog();
+        } catch (IOException e) {
+            throw new SQLException("Could not open the inventory log", e);
+        }
+        Thread writer = new Thread(this::writeLogForever, "vaccine-inventory-log");
+        writer.setDaemon(true);
+        writer.start();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "vaccine-inventory-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flushQuietly, "vaccine-inventory-shutdown"));
+    }
+
+    public static VaccineInventory getInstance() throws SQLException {
+        VaccineInventory inventory = instance;
+        if (inventory == null) {
+            synchronized (VaccineInventory.class) {
+                inventory = instance;
+                if (inventory == null) {
+                    String dir = System.getProperty("InventoryLogDir", System.getenv("InventoryLogDir"));
+                    inventory = new VaccineInventory(Paths.get(dir == null || dir.isEmpty() ? "." : dir));
+                    instance = inventory;
+                }
+            }
+        }
+        return inventory;
+    }
+
+    /**
+     * Takes one dose of the vaccine if there is one left and logs it as taken. The dose must be handed back
+     * with cancelReserve if the booking is not stored.
+     */
+    public boolean tryReserve(String vaccine) {
+        Stock stock = stocks.get(key(vaccine));
+        if (stock == null) {
+            return false;
+        }
+        int current;
+        do {
+            current = stock.doses.get();
+            if (current <= 0) {
+                return false;
+            }
+        } while (!stock.doses.compareAndSet(current, current - 1));
+        if (!record(stock, -1)) {
+            stock.doses.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public void cancelReserve(String vaccine) {
+        Stock stock = stocks.get(key(vaccine));
+        // a give-back that cannot be logged leaves the dose taken, which is what the log says
+        if (stock != null && record(stock, 1)) {
+            stock.doses.incrementAndGet();
+        }
+    }
+
+    /**
+     * Adds doses to a vaccine, creating it in the Vaccines table if it does not exist yet.
+     */
+    public void addDoses(String vaccine, int doses) throws SQLException {
+        if (doses <= 0) {
+            throw new IllegalArgumentException("Argument cannot be negative!");
+        }
+        Stock stock = stocks.get(key(vaccine));
+        if (stock == null) {
+            if (insertVaccine(vaccine, doses)) {
+                return;
+            }
+            // someone else created it first, fall back to adding doses
+            stock = stocks.get(key(vaccine));
+            if (stock == null) {
+                throw new SQLException("Could not create vaccine " + vaccine);
+            }
+        }
+        if (!record(stock, doses)) {
+            throw new SQLException("Could not log the doses of " + vaccine);
+        }
+        stock.doses.addAndGet(doses);
+    }
+
+    /**
+     * Whether the vaccine is in the Vaccines table, with or without doses left.
+     */
+    public boolean contains(String vaccine) {
+        return stocks.containsKey(key(vaccine));
+    }
+
+    public int getDoses(String vaccine) {
+        Stock stock = stocks.get(key(vaccine));
+        return stock == null ? 0 : stock.doses.get();
+    }
+
+    /**
+     * Returns the vaccines with at least one dose left, by name.
+     */
+    public Map<String, Integer> inStock() {
+        Map<String, Integer> result = new TreeMap<>();
+        for (Stock stock : stocks.values()) {
+            int doses = stock.doses.get();
+            if (doses > 0) {
+                result.put(stock.name, doses);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes every pending delta to the Vaccines table.
+     */
+    public synchronized void flush() throws SQLException {
+        Map<Stock, Integer> deltas = new HashMap<>();
+        long sequence;
+        synchronized (logLock) {
+            for (Stock stock : stocks.values()) {
+                int delta = stock.pending.getAndSet(0);
+                if (delta != 0) {
+                    deltas.put(stock, delta);
+                }
+            }
+            if (deltas.isEmpty()) {
+                return;
+            }
+            sequence = logSequence;
+            try {
+                log.close();
+                flushedLogs.add(logFile(sequence));
+                logSequence++;
+                openLog();
+            } catch (IOException e) {
+                restore(deltas);
+                throw new SQLException("Could not roll the inventory log", e);
+            }
+        }
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            if (con == null) {
+                throw new SQLException("No connection available");
+            }
+            con.setAutoCommit(false);
+            try (PreparedStatement update = con.prepareStatement("UPDATE Vaccines SET Doses = Doses + ? WHERE Name = ?")) {
+                for (Map.Entry<Stock, Integer> delta : deltas.entrySet()) {
+                    update.setInt(1, delta.getValue());
+                    update.setString(2, delta.getKey().name);
+                    update.addBatch();
+                }
+                update.executeBatch();
+            }
+            saveSequence(con, sequence);
+            con.commit();
+        } catch (SQLException e) {
+            // the deltas stay in the rolled logs, so only the counters need to be put back
+            if (con != null) {
+                con.rollback();
+            }
+            synchronized (logLock) {
+                restore(deltas);
+            }
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+
+        synchronized (logLock) {
+            for (Path flushed : flushedLogs) {
+                try {
+                    Files.deleteIfExists(flushed);
+                } catch (IOException e) {
+                    // recovery skips logs at or below the saved sequence anyway
+                }
+            }
+            flushedLogs.clear();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (SQLException e) {
+            System.out.println("Error occurred when saving vaccine doses");
+            e.printStackTrace();
+        }
+    }
+
+    // returns once the delta is on disk, or false if it could not be logged and so was not counted
+    private boolean record(Stock stock, int delta) {
+        LogEntry entry = new LogEntry(stock, delta);
+        appends.add(entry);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                entry.written.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return entry.logged;
+    }
+
+    // writes whatever has been queued since the last write with a single write and force
+    private void writeLogForever() {
+        List<LogEntry> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(appends.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            appends.drainTo(batch);
+            StringBuilder lines = new StringBuilder();
+            for (LogEntry entry : batch) {
+                lines.append(entry.stock.name).append('\t').append(entry.delta).append('\n');
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            synchronized (logLock) {
+                long size = -1;
+                try {
+                    size = log.size();
+                    while (bytes.hasRemaining()) {
+                        log.write(bytes);
+                    }
+                    log.force(false);
+                    for (LogEntry entry : batch) {
+                        entry.stock.pending.addAndGet(entry.delta);
+                        entry.logged = true;
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error occurred when logging vaccine doses");
+                    e.printStackTrace();
+                    // none of the batch is counted, so none of it may be replayed
+                    truncateQuietly(size);
+                }
+            }
+            for (LogEntry entry : batch) {
+                entry.written.countDown();
+            }
+            batch.clear();
+        }
+    }
+
+    private void truncateQuietly(long size) {
+        if (size < 0) {
+            return;
+        }
+        try {
+            log.truncate(size);
+        } catch (IOException e) {
+            // recovery ignores a torn last line, and there is nothing more to try
+        }
+    }
+
+    private void restore(Map<Stock, Integer> deltas) {
+        for (Map.Entry<Stock, Integer> delta : deltas.entrySet()) {
+            delta.getKey().pending.addAndGet(delta.getValue());
+        }
+    }
+
+    private boolean insertVaccine(String vaccine, int doses) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try (PreparedStatement insert = con.prepareStatement("INSERT INTO Vaccines SELECT ?, ? " +
+                    "WHERE NOT EXISTS (SELECT 1 FROM Vaccines WHERE Name = ?)");
+             PreparedStatement select = con.prepareStatement("SELECT Name, Doses FROM Vaccines WHERE Name = ?")) {
+            insert.setString(1, vaccine);
+            insert.setInt(2, doses);
+            insert.setString(3, vaccine);
+            boolean inserted = insert.executeUpdate() == 1;
+
+            select.setString(1, vaccine);
+            ResultSet rs = select.executeQuery();
+            if (rs.next()) {
+                stocks.putIfAbsent(key(rs.getString(1)), new Stock(rs.getString(1), rs.getInt(2)));
+            }
+            return inserted;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    /**
+     * Picks up vaccines that were inserted into the Vaccines table directly, such as by bulk_import.
+     * Vaccines already tracked keep their in-memory counts.
+     */
+    public void loadNew() throws SQLException {
+        load();
+    }
+
+    private void load() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try (PreparedStatement select = con.prepareStatement("SELECT Name, Doses FROM Vaccines")) {
+            ResultSet rs = select.executeQuery();
+            while (rs.next()) {
+                stocks.putIfAbsent(key(rs.getString(1)), new Stock(rs.getString(1), rs.getInt(2)));
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    /**
+     * Applies the logs left behind by a previous run that were not flushed and returns the sequence
+     * number for the next log.
+     */
+    private long recover() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try {
+            con.setAutoCommit(false);
+            long flushed = readSequence(con);
+            long last = flushed;
+            Map<String, Integer> deltas = new HashMap<>();
+            List<Path> logs = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(logDir, LOG_PREFIX + "*" + LOG_SUFFIX)) {
+                for (Path file : files) {
+                    logs.add(file);
+                    long sequence = sequenceOf(file);
+                    if (sequence <= flushed) {
+                        continue;
+                    }
+                    last = Math.max(last, sequence);
+                    String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+                    // a line without its newline was torn by a crash in the middle of a write
+                    for (String line : text.substring(0, text.lastIndexOf('\n') + 1).split("\n")) {
+                        String[] fields = line.split("\t");
+                        if (fields.length == 2) {
+                            deltas.merge(fields[0], Integer.parseInt(fields[1].trim()), Integer::sum);
+                        }
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                throw new SQLException("Could not read the inventory logs", e);
+            }
+            if (!deltas.isEmpty()) {
+                try (PreparedStatement update = con.prepareStatement(
+                        "UPDATE Vaccines SET Doses = Doses + ? WHERE Name = ?")) {
+                    for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+                        update.setInt(1, delta.getValue());
+                        update.setString(2, delta.getKey());
+                        update.addBatch();
+                    }
+                    update.executeBatch();
+                }
+            }
+            if (last > flushed) {
+                saveSequence(con, last);
+            }
+            con.commit();
+            for (Path file : logs) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    // already applied, so it is skipped next time
+                }
+            }
+            return last + 1;
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static long readSequence(Connection con) throws SQLException {
+        try (PreparedStatement select = con.prepareStatement("SELECT NextValue FROM IdBlocks WHERE Name = ?")) {
+            select.setString(1, LOG_SEQUENCE);
+            ResultSet rs = select.executeQuery();
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    private static void saveSequence(Connection con, long sequence) throws SQLException {
+        try (PreparedStatement update = con.prepareStatement("UPDATE IdBlocks SET NextValue = ? WHERE Name = ?")) {
+            update.setLong(1, sequence);
+            update.setString(2, LOG_SEQUENCE);
+            if (update.executeUpdate() > 0) {
+                return;
+            }
+        }
+        try (PreparedStatement insert = con.prepareStatement("INSERT INTO IdBlocks VALUES (?, ?)")) {
+            insert.setString(1, LOG_SEQUENCE);
+            insert.setLong(2, sequence);
+            insert.executeUpdate();
+        }
+    }
+
+    private void openLog() throws IOException {
+        log = FileChannel.open(logFile(logSequence), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private Path logFile(long sequence) {
+        return logDir.resolve(LOG_PREFIX + sequence + LOG_SUFFIX);
+    }
+
+    private static long sequenceOf(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String key(String vaccine) {
+        return ConnectionManager.getDialect().nameKey(vaccine);
+    }
+
+    private static class LogEntry {
+        private final Stock stock;
+        private final int delta;
+        private final CountDownLatch written = new CountDownLatch(1);
+        // set by the writer before it counts down written
+        private boolean logged;
+
+        private LogEntry(Stock stock, int delta) {
+            this.stock = stock;
+            this.delta = delta;
+        }
+    }
+
+    private static class Stock {
+        private final String name;
+        private final AtomicInteger doses;
+        // logged changes not yet written to the Vaccines table
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private Stock(String name, int doses) {
+            this.name = name;
+            this.doses = new AtomicInteger(doses);
+        }
+    }
+}
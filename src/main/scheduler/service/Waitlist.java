@@ -0,0 +1,579 @@
+package scheduler.service;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.IdAllocator;
+import scheduler.journal.EventJournal;
+import scheduler.journal.JournalEvent;
+import scheduler.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Patients waiting for a caregiver or a dose on a date, booked as soon as one becomes available.
+ *
+ * A reserve that fails for lack of a caregiver or a dose queues the request in the Waitlist table and in a
+ * FIFO queue per date and vaccine. Events that can satisfy requests, new availability, new doses and
+ * cancellations, mark the queues they affect and wake a background matcher. The matcher takes up to
+ * BATCH_SIZE requests off the head of a marked queue, picks a dose and a caregiver for each the same way
+ * reserve does, and books the whole batch in one transaction: the Availabilities rows are deleted, the
+ * Reservations rows inserted and the Waitlist rows deleted with one JDBC batch each. Requests whose slot
+ * turns out to be gone stay at the head of the queue for the next batch.
+ *
+ * Slots a caregiver freed with cancel_day are held back from matching, since the caregiver just cleared
+ * that day, until they upload availability for it again. The holds only live in memory.
+ *
+ * Only known vaccines and dates from today on can be waited for. Requests whose date has passed are dropped
+ * on startup and when the matcher wakes on a new day. A request the patient withdrew after booking it
+ * themselves is not booked again: the matcher only books requests whose Waitlist row it deleted.
+ *
+ * The queues are read from the table on startup, so waiting patients survive a restart. The number of
+ * waiting requests is published as the waitlist.depth gauge and the time from queueing to booking as the
+ * waitlist.match timer.
+ */
+public class Waitlist {
+
+    private static final int BATCH_SIZE = 100;
+    private static final int ID_BLOCK_SIZE = 100;
+
+    private static final String addRequest = "INSERT INTO Waitlist VALUES (?, ?, ?, ?)";
+    private static final String deleteRequest = "DELETE FROM Waitlist WHERE ID = ?";
+    private static final String deleteExpired = "DELETE FROM Waitlist WHERE Time < ?";
+    private static final String claimCaregiver = "DELETE FROM Availabilities WHERE Time = ? AND Username = ?";
+    private static final String restoreAvailability = "INSERT INTO Availabilities VALUES (?, ?)";
+    private static final String addReservation = "INSERT INTO Reservations VALUES (?, ?, ?, ?, ?)";
+
+    private static volatile Waitlist instance = null;
+
+    // keyed by date and vaccine name as the database compares names, see Dialect.nameKey
+    private final Map<Key, ArrayDeque<Request>> queues = new HashMap<>();
+    private final Set<Key> marked = new HashSet<>();
+    // "<epoch day> <caregiver>" of the slots freed by cancel_day; read by CaregiverAssignment under its lock
+    private final Set<String> held = ConcurrentHashMap.newKeySet();
+    // requests for days before this epoch day have been dropped; only changed by the matcher, under this
+    private long expiredBefore;
+
+    private final IdAllocator requestIds = new IdAllocator("Waitlist", "SELECT MAX(ID) FROM Waitlist", ID_BLOCK_SIZE);
+    private final IdAllocator reservationIds = new IdAllocator("Reservations",
+            "SELECT MAX(ID) FROM Reservations", ID_BLOCK_SIZE);
+
+    private final AtomicLong depth = new AtomicLong();
+    private final AtomicLong matched = new AtomicLong();
+    private final Metrics.Timer matchTimer = Metrics.timer("waitlist.match");
+
+    private Waitlist() throws SQLException {
+        load();
+        Metrics.gauge("waitlist.depth", depth::get);
+        Metrics.gauge("waitlist.matched", matched::get);
+        Thread matcher = new Thread(this::matchForever, "waitlist-matcher");
+        matcher.setDaemon(true);
+        matcher.start();
+    }
+
+    public static Waitlist getInstance() throws SQLException {
+        Waitlist waitlist = instance;
+        if (waitlist == null) {
+            synchronized (Waitlist.class) {
+                waitlist = instance;
+                if (waitlist == null) {
+                    waitlist = new Waitlist();
+                    instance = waitlist;
+                }
+            }
+        }
+        return waitlist;
+    }
+
+    /**
+     * Queues the patient's request and returns their position in the queue for the date and vaccine,
+     * counting from 1. A patient who is already waiting keeps their place.
+     *
+     * @throws IllegalArgumentException if the vaccine is unknown or the date has passed
+     */
+    public int add(String patient, Date date, String vaccine) throws SQLException {
+        if (date.toLocalDate().isBefore(LocalDate.now())) {
+            throw new IllegalArgumentException("The date has passed!");
+        }
+        if (!VaccineInventory.getInstance().contains(vaccine)) {
+            throw new IllegalArgumentException("Unknown vaccine!");
+        }
+        Key key = new Key(date, vaccine);
+        synchronized (this) {
+            int position = positionOf(key, patient);
+            if (position > 0) {
+                return position;
+            }
+        }
+        int id = requestIds.next();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try (PreparedStatement statement = con.prepareStatement(addRequest)) {
+            statement.setInt(1, id);
+            statement.setString(2, patient);
+            statement.setDate(3, date);
+            statement.setString(4, vaccine);
+            statement.executeUpdate();
+        } finally {
+            cm.closeConnection();
+        }
+        synchronized (this) {
+            queues.computeIfAbsent(key, k -> new ArrayDeque<>())
+                    .addLast(new Request(id, patient, date, vaccine, System.nanoTime()));
+            depth.incrementAndGet();
+            // the slot or dose may have turned up while the request was being stored
+            mark(key);
+            return positionOf(key, patient);
+        }
+    }
+
+    /**
+     * Drops the patient's request for the date and vaccine, if any, once they have booked it themselves.
+     */
+    public void withdraw(String patient, Date date, String vaccine) throws SQLException {
+        Request withdrawn = null;
+        synchronized (this) {
+            Key key = new Key(date, vaccine);
+            ArrayDeque<Request> queue = queues.get(key);
+            if (queue != null) {
+                for (Request request : queue) {
+                    if (request.patient.equals(patient)) {
+                        withdrawn = request;
+                        break;
+                    }
+                }
+            }
+            if (withdrawn == null) {
+                return;
+            }
+            queue.remove(withdrawn);
+            if (queue.isEmpty()) {
+                queues.remove(key);
+            }
+            depth.decrementAndGet();
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try (PreparedStatement statement = con.prepareStatement(deleteRequest)) {
+            statement.setInt(1, withdrawn.id);
+            statement.executeUpdate();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    /**
+     * Keeps the matcher away from a slot a caregiver freed by cancelling their appointments on the date.
+     */
+    public void hold(Date date, String caregiver) {
+        held.add(slot(date, caregiver));
+    }
+
+    /**
+     * Records that the caregiver uploaded availability for the date, releasing a hold on it, and wakes the
+     * matcher for the date.
+     */
+    public void availabilityAdded(Date date, String caregiver) {
+        held.remove(slot(date, caregiver));
+        dateChanged(date);
+    }
+
+    /**
+     * Wakes the matcher for the requests on the date, after new availability or a cancellation.
+     */
+    public synchronized void dateChanged(Date date) {
+        for (Key key : queues.keySet()) {
+            if (key.day == date.toLocalDate().toEpochDay()) {
+                mark(key);
+            }
+        }
+    }
+
+    /**
+     * Wakes the matcher for the requests for the vaccine, after doses were added.
+     */
+    public synchronized void vaccineChanged(String vaccine) {
+        String name = ConnectionManager.getDialect().nameKey(vaccine);
+        for (Key key : queues.keySet()) {
+            if (key.vaccine.equals(name)) {
+                mark(key);
+            }
+        }
+    }
+
+    /**
+     * Wakes the matcher for every request, after the tables were changed in bulk.
+     */
+    public synchronized void allChanged() {
+        for (Key key : queues.keySet()) {
+            mark(key);
+        }
+    }
+
+    public long getDepth() {
+        return depth.get();
+    }
+
+    private void mark(Key key) {
+        if (marked.add(key)) {
+            notifyAll();
+        }
+    }
+
+    private int positionOf(Key key, String patient) {
+        ArrayDeque<Request> queue = queues.get(key);
+        if (queue == null) {
+            return 0;
+        }
+        int position = 1;
+        for (Request request : queue) {
+            if (request.patient.equals(patient)) {
+                return position;
+            }
+            position++;
+        }
+        return 0;
+    }
+
+    private void matchForever() {
+        while (true) {
+            Key key;
+            synchronized (this) {
+                while (marked.isEmpty() && expiredBefore >= LocalDate.now().toEpochDay()) {
+                    try {
+                        // wakes up by the next day at the latest to drop the requests for today
+                        wait(Duration.between(LocalDateTime.now(), LocalDate.now().plusDays(1).atStartOfDay())
+                                .toMillis() + 1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                key = marked.isEmpty() ? null : marked.iterator().next();
+                marked.remove(key);
+            }
+            try {
+                if (expiredBefore < LocalDate.now().toEpochDay()) {
+                    expire();
+                }
+                if (key == null) {
+                    continue;
+                }
+                while (matchBatch(key) > 0) {
+                    // keep going while the queue is being served
+                }
+            } catch (SQLException e) {
+                // the requests stay queued and are tried again on the next event
+                matchTimer.recordError();
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // drops the requests for days that have passed, from memory and then from the table; rows left behind
+    // by a failed delete go with the next day's
+    private void expire() throws SQLException {
+        LocalDate today = LocalDate.now();
+        synchronized (this) {
+            Iterator<Map.Entry<Key, ArrayDeque<Request>>> it = queues.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, ArrayDeque<Request>> entry = it.next();
+                if (entry.getKey().day < today.toEpochDay()) {
+                    depth.addAndGet(-entry.getValue().size());
+                    marked.remove(entry.getKey());
+                    it.remove();
+                }
+            }
+            expiredBefore = today.toEpochDay();
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try (PreparedStatement statement = con.prepareStatement(deleteExpired)) {
+            statement.setDate(1, Date.valueOf(today));
+            statement.executeUpdate();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // books what it can of the head of the queue and returns the number of requests that got a dose and a
+    // caregiver, whether or not their slot was still there
+    private int matchBatch(Key key) throws SQLException {
+        List<Request> head = new ArrayList<>(BATCH_SIZE);
+        synchronized (this) {
+            ArrayDeque<Request> queue = queues.get(key);
+            if (queue == null) {
+                return 0;
+            }
+            for (Request request : queue) {
+                if (head.size() == BATCH_SIZE) {
+                    break;
+                }
+                head.add(request);
+            }
+        }
+
+        VaccineInventory inventory = VaccineInventory.getInstance();
+        CaregiverAssignment assignment = CaregiverAssignment.getInstance();
+        List<Match> matches = new ArrayList<>(head.size());
+        for (Request request : head) {
+            // the caregiver first, since taking a dose writes to the inventory log
+            String caregiver = assignment.pick(request.date, c -> held.contains(slot(request.date, c)));
+            if (caregiver == null) {
+                break;
+            }
+            if (!inventory.tryReserve(request.vaccine)) {
+                assignment.release(request.date, caregiver);
+                break;
+            }
+            matches.add(new Match(request, caregiver));
+        }
+        if (matches.isEmpty()) {
+            return 0;
+        }
+
+        List<Match> booked;
+        try {
+            for (Match match : matches) {
+                match.reserveID = reservationIds.next();
+            }
+            booked = book(matches);
+        } catch (SQLException e) {
+            for (Match match : matches) {
+                inventory.cancelReserve(match.request.vaccine);
+                assignment.release(match.request.date, match.caregiver);
+            }
+            throw e;
+        }
+
+        List<Match> gone = new ArrayList<>(booked);
+        for (Match match : matches) {
+            Request request = match.request;
+            if (match.withdrawn) {
+                // the patient booked it themselves meanwhile, so the dose and the caregiver are still free
+                inventory.cancelReserve(request.vaccine);
+                assignment.release(request.date, match.caregiver);
+                gone.add(match);
+            } else if (booked.contains(match)) {
+                assignment.booked(request.date, match.caregiver);
+                AvailabilityIndex.getInstance().removed(request.date, match.caregiver);
+                EventJournal.getInstance().append(JournalEvent.reserved(match.reserveID, request.patient,
+                        match.caregiver, request.vaccine, request.date));
+                matchTimer.recordSince(request.queuedAt);
+            } else {
+                // the slot was gone, so this caregiver is not picked again
+                inventory.cancelReserve(request.vaccine);
+                assignment.removed(request.date, match.caregiver);
+            }
+        }
+        if (!booked.isEmpty()) {
+            ScheduleCache.getInstance().invalidateDate(booked.get(0).request.date);
+        }
+        if (!gone.isEmpty()) {
+            synchronized (this) {
+                // a request withdrawn meanwhile is already gone from the queue
+                ArrayDeque<Request> queue = queues.getOrDefault(key, new ArrayDeque<>());
+                for (Match match : gone) {
+                    if (queue.remove(match.request)) {
+                        depth.decrementAndGet();
+                    }
+                }
+                if (queue.isEmpty()) {
+                    queues.remove(key);
+                }
+                matched.addAndGet(booked.size());
+            }
+        }
+        return matches.size();
+    }
+
+    // one transaction for the whole batch; returns the matches that were booked and flags the ones whose
+    // request the patient withdrew meanwhile
+    private static List<Match> book(List<Match> matches) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try {
+            con.setAutoCommit(false);
+            List<Match> claimed = new ArrayList<>(matches.size());
+            try (PreparedStatement stClaim = con.prepareStatement(claimCaregiver)) {
+                for (Match match : matches) {
+                    stClaim.setDate(1, match.request.date);
+                    stClaim.setString(2, match.caregiver);
+                    stClaim.addBatch();
+                }
+                int[] counts = stClaim.executeBatch();
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+                        claimed.add(matches.get(i));
+                    }
+                }
+            }
+            if (claimed.isEmpty()) {
+                con.rollback();
+                return claimed;
+            }
+
+            // a request that is no longer there was withdrawn by a patient who booked it themselves; deleting
+            // it here also keeps a concurrent withdraw from finding it until this commits
+            List<Match> booked = new ArrayList<>(claimed.size());
+            List<Match> withdrawn = new ArrayList<>();
+            try (PreparedStatement stRequest = con.prepareStatement(deleteRequest)) {
+                for (Match match : claimed) {
+                    stRequest.setInt(1, match.request.id);
+                    stRequest.addBatch();
+                }
+                int[] counts = stRequest.executeBatch();
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+                        booked.add(claimed.get(i));
+                    } else {
+                        withdrawn.add(claimed.get(i));
+                    }
+                }
+            }
+            if (!withdrawn.isEmpty()) {
+                try (PreparedStatement stRestore = con.prepareStatement(restoreAvailability)) {
+                    for (Match match : withdrawn) {
+                        stRestore.setDate(1, match.request.date);
+                        stRestore.setString(2, match.caregiver);
+                        stRestore.addBatch();
+                    }
+                    stRestore.executeBatch();
+                }
+            }
+
+            if (!booked.isEmpty()) {
+                try (PreparedStatement stReservation = con.prepareStatement(addReservation)) {
+                    for (Match match : booked) {
+                        Request request = match.request;
+                        stReservation.setInt(1, match.reserveID);
+                        stReservation.setString(2, request.patient);
+                        stReservation.setString(3, match.caregiver);
+                        stReservation.setString(4, request.vaccine);
+                        stReservation.setDate(5, request.date);
+                        stReservation.addBatch();
+                    }
+                    stReservation.executeBatch();
+                }
+            }
+
+            con.commit();
+            for (Match match : withdrawn) {
+                match.withdrawn = true;
+            }
+            return booked;
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static String slot(Date date, String caregiver) {
+        return date.toLocalDate().toEpochDay() + " " + caregiver;
+    }
+
+    private void load() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        if (con == null) {
+            throw new SQLException("No connection available");
+        }
+        try (PreparedStatement statement = con.prepareStatement(
+                "SELECT ID, Patient, Time, Vaccine FROM Waitlist ORDER BY ID")) {
+            statement.setFetchSize(ConnectionManager.getFetchSize());
+            ResultSet rs = statement.executeQuery();
+            long now = System.nanoTime();
+            while (rs.next()) {
+                Request request = new Request(rs.getInt(1), rs.getString(2), rs.getDate(3), rs.getString(4), now);
+                Key key = new Key(request.date, request.vaccine);
+                queues.computeIfAbsent(key, k -> new ArrayDeque<>()).addLast(request);
+                marked.add(key);
+                depth.incrementAndGet();
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static class Key {
+        private final long day;
+        private final String vaccine;
+
+        private Key(Date date, String vaccine) {
+            this.day = date.toLocalDate().toEpochDay();
+            this.vaccine = ConnectionManager.getDialect().nameKey(vaccine);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return day == other.day && vaccine.equals(other.vaccine);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(day) * 31 + vaccine.hashCode();
+        }
+    }
+
+    private static class Request {
+        private final int id;
+        private final String patient;
+        private final Date date;
+        private final String vaccine;
+        // System.nanoTime() when it was queued, or when it was loaded after a restart
+        private final long queuedAt;
+
+        private Request(int id, String patient, Date date, String vaccine, long queuedAt) {
+            this.id = id;
+            this.patient = patient;
+            this.date = date;
+            this.vaccine = vaccine;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private static class Match {
+        private final Request request;
+        private final String caregiver;
+        private int reserveID;
+        private boolean withdrawn;
+
+        private Match(Request request, String caregiver) {
+            this.request = request;
+            this.caregiver = caregiver;
+        }
+    }
+}
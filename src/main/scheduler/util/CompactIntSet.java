@@ -0,0 +1,128 @@
+package scheduler.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of small non-negative ints that stores itself as a sorted int array while it is sparse and as a
+ * bitmap once that is smaller, so a set costs at most about max(4 bytes per member, 1 bit per possible
+ * member). Not thread-safe.
+ */
+public class CompactIntSet {
+
+    private static final int[] NO_MEMBERS = new int[0];
+
+    // exactly one of these is in use: members[0..size) sorted, or words as a bitmap
+    private int[] members = NO_MEMBERS;
+    private long[] words = null;
+    private int size = 0;
+
+    /**
+     * Adds value and returns whether it was not in the set yet.
+     */
+    public boolean add(int value) {
+        if (words != null) {
+            int word = value >>> 6;
+            if (word >= words.length) {
+                words = Arrays.copyOf(words, Math.max(word + 1, words.length * 2));
+            }
+            long mask = 1L << value;
+            if ((words[word] & mask) != 0) {
+                return false;
+            }
+            words[word] |= mask;
+            size++;
+            return true;
+        }
+        int i = Arrays.binarySearch(members, 0, size, value);
+        if (i >= 0) {
+            return false;
+        }
+        i = -i - 1;
+        if (size == members.length) {
+            members = Arrays.copyOf(members, Math.max(4, size * 2));
+        }
+        System.arraycopy(members, i, members, i + 1, size - i);
+        members[i] = value;
+        size++;
+        // one bit per value up to the largest beats four bytes per member
+        if ((long) size * 32 > members[size - 1] + 64) {
+            toBitmap();
+        }
+        return true;
+    }
+
+    /**
+     * Removes value and returns whether it was in the set.
+     */
+    public boolean remove(int value) {
+        if (words != null) {
+            int word = value >>> 6;
+            long mask = 1L << value;
+            if (word >= words.length || (words[word] & mask) == 0) {
+                return false;
+            }
+            words[word] &= ~mask;
+            size--;
+            return true;
+        }
+        int i = Arrays.binarySearch(members, 0, size, value);
+        if (i < 0) {
+            return false;
+        }
+        System.arraycopy(members, i + 1, members, i, size - i - 1);
+        size--;
+        return true;
+    }
+
+    public boolean contains(int value) {
+        if (words != null) {
+            int word = value >>> 6;
+            return word < words.length && (words[word] & (1L << value)) != 0;
+        }
+        return Arrays.binarySearch(members, 0, size, value) >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the members in ascending order.
+     */
+    public int[] toArray() {
+        if (words == null) {
+            return Arrays.copyOf(members, size);
+        }
+        int[] result = new int[size];
+        int n = 0;
+        for (int w = 0; w < words.length; w++) {
+            long word = words[w];
+            while (word != 0) {
+                result[n++] = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The approximate heap footprint of the set, including its arrays.
+     */
+    public long sizeInBytes() {
+        long arrays = words != null ? 16 + 8L * words.length : 16 + 4L * members.length;
+        return 32 + arrays;
+    }
+
+    private void toBitmap() {
+        long[] bitmap = new long[(members[size - 1] >>> 6) + 1];
+        for (int i = 0; i < size; i++) {
+            bitmap[members[i] >>> 6] |= 1L << members[i];
+        }
+        words = bitmap;
+        members = NO_MEMBERS;
+    }
+}
@@ -0,0 +1,89 @@
+package scheduler.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes password hashes on a shared pool with one thread per core, so that hashing large batches
+ * of accounts uses every core without oversubscribing the machine.
+ */
+public class HashingService {
+
+    private static final HashingService instance = new HashingService(Runtime.getRuntime().availableProcessors());
+
+    private final ExecutorService pool;
+    private final int threads;
+
+    public HashingService(int threads) {
+        this.threads = threads;
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "hashing-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        this.pool = executor;
+    }
+
+    public static HashingService getInstance() {
+        return instance;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public CompletableFuture<byte[]> hash(String password, byte[] salt) {
+        return CompletableFuture.supplyAsync(() -> Util.generateHash(password, salt), pool);
+    }
+
+    /**
+     * Hashes passwords.get(i) with salts.get(i) for every i. The work is split into one slice per thread
+     * rather than one task per password to keep the scheduling overhead out of the measurements.
+     */
+    public CompletableFuture<List<byte[]>> hashAll(List<String> passwords, List<byte[]> salts) {
+        if (passwords.size() != salts.size()) {
+            throw new IllegalArgumentException("Every password needs a salt!");
+        }
+        int size = passwords.size();
+        byte[][] hashes = new byte[size][];
+        int slice = Math.max(1, (size + threads - 1) / threads);
+        List<CompletableFuture<Void>> parts = new ArrayList<>();
+        for (int from = 0; from < size; from += slice) {
+            int start = from;
+            int end = Math.min(size, from + slice);
+            parts.add(CompletableFuture.runAsync(() -> {
+                for (int i = start; i < end; i++) {
+                    hashes[i] = Util.generateHash(passwords.get(i), salts.get(i));
+                }
+            }, pool));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> List.of(hashes));
+    }
+
+    /**
+     * Generates a fresh salt for every password and hashes them; element i of the result is {salt, hash}.
+     */
+    public CompletableFuture<List<byte[][]>> saltAndHashAll(List<String> passwords) {
+        List<byte[]> salts = new ArrayList<>(passwords.size());
+        for (int i = 0; i < passwords.size(); i++) {
+            salts.add(Util.generateSalt());
+        }
+        return hashAll(passwords, salts).thenApply(hashes -> {
+            List<byte[][]> result = new ArrayList<>(hashes.size());
+            for (int i = 0; i < hashes.size(); i++) {
+                result.add(new byte[][]{salts.get(i), hashes.get(i)});
+            }
+            return result;
+        });
+    }
+}
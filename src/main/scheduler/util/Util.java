@@ -1,5 +1,7 @@
 package scheduler.util;
 
+import scheduler.metrics.Metrics;
+
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 import java.security.NoSuchAlgorithmException;
@@ -14,9 +16,22 @@ public class Util {
     private static final int HASH_STRENGTH = 10;
     private static final int KEY_LENGTH = 16;
 
+    // SecureRandom is thread-safe, and seeding a new one per salt is expensive
+    private static final SecureRandom random = new SecureRandom();
+
+    // SecretKeyFactory is not thread-safe, so every thread keeps its own
+    private static final ThreadLocal<SecretKeyFactory> factories = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException();
+        }
+    });
+
+    private static final Metrics.Timer hashTimer = Metrics.timer("hash.generate");
+
     public static byte[] generateSalt() {
         // Generate a random cryptographic salt
-        SecureRandom random = new SecureRandom();
         byte[] salt = new byte[16];
         random.nextBytes(salt);
         return salt;
@@ -27,14 +42,14 @@ public class Util {
         KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
 
         // Generate the hash
-        SecretKeyFactory factory = null;
+        long start = System.nanoTime();
         byte[] hash = null;
         try {
-            factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-            hash = factory.generateSecret(spec).getEncoded();
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
+            hash = factories.get().generateSecret(spec).getEncoded();
+        } catch (InvalidKeySpecException ex) {
             throw new IllegalStateException();
         }
+        hashTimer.recordSince(start);
         return hash;
     }
 
@@ -48,4 +63,38 @@ public class Util {
 
         return Arrays.copyOf(bytes, i + 1);
     }
+
+    /**
+     * At least 8 characters of letters, digits and ?@#!, with a lowercase and an uppercase letter, a digit and
+     * one of ?@#!. Public because account creation and bulk_import both check passwords from their own packages.
+     */
+    public static boolean checkStrongPassword(String password) {
+        boolean lengthStrain = false;
+        boolean lower = false;
+        boolean upper = false;
+        boolean num = false;
+        boolean letter = false;
+        boolean specialChar = false;
+
+        lengthStrain = (password.length() >= 8);
+        for (int i = 0; i < password.length(); i++) {
+            char temp = password.charAt(i);
+            if(Character.isDigit(temp)) {
+                num = true;
+            } else if(Character.isLetter(temp)) {
+                letter = true;
+                if(Character.isLowerCase(temp)) {
+                    lower = true;
+                } else {
+                    upper = true;
+                }
+            } else if (temp == '?' || temp == '@' || temp == '#' || temp == '!') {
+                specialChar = true;
+            } else {
+                return false;
+            }
+        }
+
+        return letter && num && lengthStrain && lower && upper && specialChar;
+    }
 }